@@ -0,0 +1,83 @@
+package server;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import client.StudentTcpProxy;
+
+/**
+ * Purpose: a whole call over a loopback connection, from the client proxy
+ * through framing, the server's connection and worker threads and the
+ * skeleton, and back. The server runs in the benchmark's JVM on a free port.
+ *
+ * run with: gradle JsonRPCviaTCPStudent:runJmh --args 'RpcRoundTripBenchmark'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dstore.fsync=false")
+@State(Scope.Benchmark)
+public class RpcRoundTripBenchmark {
+
+   private File dir;
+   private ServerSocket serv;
+   private StudentTcpProxy proxy;
+   private StudentCollection remote;
+
+   @Setup
+   public void setup() throws Exception {
+      dir = Files.createTempDirectory("rpc-bench").toFile();
+      ChangeFeed feed = new ChangeFeed();
+      StudentCollection students =
+         new StudentCollectionImpl(new File(dir, "students.json").getPath(), feed);
+      for (int i = 0; i < 1000; i++) {
+         students.add(new Student("Student"+i, i, new String[]{"Ser321", "Ser423", "Cse494"}));
+      }
+      serv = new ServerSocket(0);
+      Thread acceptor = new Thread(() -> {
+            int id = 0;
+            try {
+               while (true) {
+                  Socket sock = serv.accept();
+                  new StudentCollectionTCPJsonRPCServer(sock, id++, students, feed).start();
+               }
+            } catch (Exception e) {
+               // server socket closed
+            }
+         });
+      acceptor.setDaemon(true);
+      acceptor.start();
+      proxy = new StudentTcpProxy("localhost", serv.getLocalPort(), 1);
+      remote = proxy.collection();
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      proxy.close();
+      serv.close();
+      for (File f : dir.listFiles()) {
+         f.delete();
+      }
+      dir.delete();
+   }
+
+   @Benchmark
+   public Student get() {
+      return remote.get("Student500");
+   }
+
+   @Benchmark
+   public String getNameById() {
+      return remote.getNameById(500);
+   }
+
+   @Benchmark
+   public boolean add() {
+      return remote.add(new Student("Student500", 500, new String[]{"Ser321", "Ser423", "Cse494"}));
+   }
+}
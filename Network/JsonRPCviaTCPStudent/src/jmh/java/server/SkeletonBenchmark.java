@@ -0,0 +1,80 @@
+package server;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Purpose: the cost of one call in the skeleton without the network:
+ * parsing the request, dispatching to the collection and printing the
+ * response. get returns a Student, once with the Codecs the server uses
+ * and once with a Student codec that goes through org.json like before;
+ * getNameById has no Student and shows the cost of the dispatch itself.
+ *
+ * run with: gradle JsonRPCviaTCPStudent:runJmh --args 'SkeletonBenchmark'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dstore.fsync=false")
+@State(Scope.Benchmark)
+public class SkeletonBenchmark {
+
+   private File dir;
+   private StudentCollectionSkeleton fast;
+   private StudentCollectionSkeleton orgJson;
+   private String getRequest;
+   private String getNameByIdRequest;
+
+   /**
+    * Codecs with the Student codec the skeleton had before StudentJson.
+    */
+   static Codecs orgJsonCodecs() {
+      Codecs ret = new Codecs();
+      ret.register(Student.class, new Codec<Student>() {
+            public Object toJson(Student value) { return value.toJson(); }
+            public Student fromJson(Object json) { return new Student((JSONObject)json); }
+         });
+      return ret;
+   }
+
+   @Setup
+   public void setup() throws Exception {
+      dir = Files.createTempDirectory("skeleton-bench").toFile();
+      StudentCollection students =
+         new StudentCollectionImpl(new File(dir, "students.json").getPath(), new ChangeFeed());
+      for (int i = 0; i < 1000; i++) {
+         students.add(new Student("Student"+i, i, new String[]{"Ser321", "Ser423", "Cse494"}));
+      }
+      fast = new StudentCollectionSkeleton(students);
+      orgJson = new StudentCollectionSkeleton(students, orgJsonCodecs());
+      getRequest = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"get\",\"params\":[\"Student500\"]}";
+      getNameByIdRequest = "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"getNameById\",\"params\":[500]}";
+   }
+
+   @TearDown
+   public void tearDown() {
+      for (File f : dir.listFiles()) {
+         f.delete();
+      }
+      dir.delete();
+   }
+
+   @Benchmark
+   public String getFast() {
+      return fast.callMethod(getRequest);
+   }
+
+   @Benchmark
+   public String getOrgJson() {
+      return orgJson.callMethod(getRequest);
+   }
+
+   @Benchmark
+   public String getNameById() {
+      return fast.callMethod(getNameByIdRequest);
+   }
+}
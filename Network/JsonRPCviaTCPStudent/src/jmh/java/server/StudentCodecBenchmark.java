@@ -0,0 +1,70 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Purpose: what it costs to turn a Student into json text and back, with
+ * org.json (Student.toJsonString and the Student constructors) and with
+ * StudentJson, for a student with few and with many courses.
+ *
+ * run with: gradle JsonRPCviaTCPStudent:runJmh --args 'StudentCodecBenchmark'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StudentCodecBenchmark {
+
+   @Param({"2", "20"})
+   public int courses;
+
+   private Student student;
+   private String text;
+   private JSONObject object;
+
+   @Setup
+   public void setup() {
+      String[] takes = new String[courses];
+      for (int i = 0; i < courses; i++) {
+         takes[i] = "Ser"+(300+i);
+      }
+      student = new Student("Tim Lindquist", 1234567, takes);
+      text = student.toJsonString();
+      object = new JSONObject(text);
+   }
+
+   @Benchmark
+   public String encodeOrgJson() {
+      return student.toJsonString();
+   }
+
+   @Benchmark
+   public String encodeFast() {
+      return StudentJson.toJsonString(student);
+   }
+
+   @Benchmark
+   public Student decodeOrgJson() {
+      return new Student(text);
+   }
+
+   @Benchmark
+   public Student decodeFast() {
+      return StudentJson.read(text);
+   }
+
+   // params arrive in the skeleton as JSONObjects already parsed with the request
+   @Benchmark
+   public Student decodeObjectOrgJson() {
+      return new Student(object);
+   }
+
+   @Benchmark
+   public Student decodeObjectFast() {
+      return StudentJson.fromJson(object);
+   }
+}
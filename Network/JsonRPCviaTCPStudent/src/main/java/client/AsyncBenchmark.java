@@ -0,0 +1,50 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import server.Student;
+import server.StudentCollection;
+
+/**
+ * Purpose:
+ * Compares looking up many students one call after the other with sending
+ * all lookups at once through the async interface and waiting for all of
+ * them together. Needs a running server, looks up the students the server
+ * already has (by name, round robin).
+ */
+public class AsyncBenchmark extends Object {
+
+   public static void main(String args[]) throws Exception {
+      String host = (args.length > 0) ? args[0] : "localhost";
+      int port = (args.length > 1) ? Integer.parseInt(args[1]) : 9099;
+      int count = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+      int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+      StudentTcpProxy proxy = new StudentTcpProxy(host, port);
+      StudentCollection sc = proxy.collection();
+      StudentCollectionAsync async = proxy.async();
+      String[] names = sc.getNames();
+
+      long syncNs = 0, asyncNs = 0;
+      for (int r = 0; r < rounds; r++) {
+         long start = System.nanoTime();
+         for (int i = 0; i < count; i++) {
+            sc.get(names[i % names.length]);
+         }
+         syncNs += System.nanoTime() - start;
+
+         start = System.nanoTime();
+         List<CompletableFuture<Student>> all = new ArrayList<CompletableFuture<Student>>();
+         for (int i = 0; i < count; i++) {
+            all.add(async.getAsync(names[i % names.length]));
+         }
+         CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).join();
+         asyncNs += System.nanoTime() - start;
+      }
+      System.out.printf("%d gets one after the other: %.2f ms%n", count, syncNs/1e6/rounds);
+      System.out.printf("%d gets in flight together: %.2f ms%n", count, asyncNs/1e6/rounds);
+      System.out.printf("speedup: %.1fx%n", (double)syncNs/asyncNs);
+      proxy.close();
+   }
+}
@@ -0,0 +1,57 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import server.Student;
+
+/**
+ * Purpose:
+ * Compares adding many students one call at a time with adding them in
+ * JsonRPC batches. Needs a running server, the students are removed again
+ * at the end (also with a batch).
+ */
+public class BatchBenchmark extends Object {
+
+   public static void main(String args[]) throws Exception {
+      String host = (args.length > 0) ? args[0] : "localhost";
+      int port = (args.length > 1) ? Integer.parseInt(args[1]) : 9099;
+      int count = (args.length > 2) ? Integer.parseInt(args[2]) : 10000;
+      StudentTcpProxy sc = new StudentTcpProxy(host, port);
+
+      List<Student> single = new ArrayList<Student>();
+      List<Student> batched = new ArrayList<Student>();
+      for (int i = 0; i < count; i++) {
+         single.add(new Student("single"+i, 1000000+i, new String[]{"Ser321"}));
+         batched.add(new Student("batched"+i, 2000000+i, new String[]{"Ser321"}));
+      }
+
+      long start = System.nanoTime();
+      int ok = 0;
+      for (Student s : single) {
+         if (sc.collection().add(s)) ok++;
+      }
+      long singleNs = System.nanoTime() - start;
+      System.out.printf("%d adds one by one: %d ms (%.0f adds/s), %d ok%n",
+                        count, singleNs/1000000, count/(singleNs/1e9), ok);
+
+      start = System.nanoTime();
+      ok = 0;
+      for (boolean b : sc.addAll(batched)) {
+         if (b) ok++;
+      }
+      long batchNs = System.nanoTime() - start;
+      System.out.printf("%d adds batched:    %d ms (%.0f adds/s), %d ok%n",
+                        count, batchNs/1000000, count/(batchNs/1e9), ok);
+      System.out.printf("speedup: %.1fx%n", (double)singleNs/batchNs);
+
+      // clean up
+      StudentTcpProxy.Batch remove = sc.batch();
+      for (int i = 0; i < count; i++) {
+         remove.call("remove", single.get(i).name);
+         remove.call("remove", batched.get(i).name);
+      }
+      remove.execute();
+      sc.close();
+   }
+}
@@ -0,0 +1,89 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import server.Student;
+import server.StudentCollection;
+
+/**
+ * Purpose:
+ * Measures what the client read cache saves. Adds a set of students, then
+ * runs the same mix of calls (mostly get and getNameById of random
+ * students, one in writeEvery an add that changes a student) once without
+ * and once with the cache, and prints latencies and the cache hit rate.
+ * Needs a running server, the students are removed again at the end.
+ */
+public class CacheBenchmark extends Object {
+
+   public static void main(String args[]) throws Exception {
+      String host = (args.length > 0) ? args[0] : "localhost";
+      int port = (args.length > 1) ? Integer.parseInt(args[1]) : 9099;
+      int calls = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+      int students = (args.length > 3) ? Integer.parseInt(args[3]) : 500;
+      int writeEvery = (args.length > 4) ? Integer.parseInt(args[4]) : 20;
+
+      StudentTcpProxy setup = new StudentTcpProxy(host, port);
+      List<Student> studs = new ArrayList<Student>();
+      for (int i = 0; i < students; i++) {
+         studs.add(new Student("cached"+i, 3000000+i, new String[]{"Ser321"}));
+      }
+      setup.addAll(studs);
+
+      run("no cache", host, port, calls, students, writeEvery, 0);
+      run("cache", host, port, calls, students, writeEvery, 1000);
+
+      StudentTcpProxy.Batch remove = setup.batch();
+      for (Student s : studs) {
+         remove.call("remove", s.name);
+      }
+      remove.execute();
+      setup.close();
+   }
+
+   private static void run(String label, String host, int port, int calls, int students,
+                           int writeEvery, int cacheSize) {
+      StudentTcpProxy proxy = new StudentTcpProxy(host, port);
+      if (cacheSize > 0) {
+         proxy.enableCache(cacheSize);
+      }
+      StudentCollection sc = proxy.collection();
+      Random rand = new Random(42); // same calls for both runs
+      long[] readNs = new long[calls];
+      int reads = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < calls; i++) {
+         int k = rand.nextInt(students);
+         if (writeEvery > 0 && i % writeEvery == writeEvery-1) {
+            sc.add(new Student("cached"+k, 3000000+k, new String[]{"Ser321", (i%2==0) ? "Ser423" : "Cse494"}));
+            continue;
+         }
+         long t = System.nanoTime();
+         if (rand.nextBoolean()) {
+            sc.get("cached"+k);
+         } else {
+            sc.getNameById(3000000+k);
+         }
+         readNs[reads++] = System.nanoTime() - t;
+      }
+      long totalMs = (System.nanoTime() - start) / 1000000;
+      long[] sorted = Arrays.copyOf(readNs, reads);
+      Arrays.sort(sorted);
+      long sum = 0;
+      for (long ns : sorted) {
+         sum += ns;
+      }
+      long[] stats = proxy.cacheStats();
+      System.out.printf("%-8s %6d calls in %5d ms, read latency avg %.1f us p50 %.1f us p99 %.1f us",
+                        label, calls, totalMs, sum/1000.0/reads,
+                        sorted[reads/2]/1000.0, sorted[(int)(reads*0.99)]/1000.0);
+      if (cacheSize > 0) {
+         System.out.printf(", hit rate %.1f%% (%d hits, %d misses)",
+                           100.0*stats[0]/Math.max(1, stats[0]+stats[1]), stats[0], stats[1]);
+      }
+      System.out.println();
+      proxy.close();
+   }
+}
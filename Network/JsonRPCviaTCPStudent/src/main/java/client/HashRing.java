@@ -0,0 +1,71 @@
+package client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring: every node is put on the ring at many places
+ * (virtual nodes) and a key belongs to the first node place at or after
+ * the key's hash. Adding a node only takes over the keys between its
+ * places and the places before them, about 1/N of all keys, and the
+ * virtual nodes spread that evenly over the other nodes.
+ */
+class HashRing extends Object {
+
+   public static final int defaultVirtualNodes = 160;
+   private TreeMap<Long,String> ring = new TreeMap<Long,String>();
+   private int virtualNodes;
+
+   public HashRing(Collection<String> nodes){
+      this(nodes, defaultVirtualNodes);
+   }
+
+   public HashRing(Collection<String> nodes, int virtualNodes){
+      this.virtualNodes = virtualNodes;
+      for (String node : nodes){
+         add(node);
+      }
+   }
+
+   public void add(String node){
+      for (int i=0; i<virtualNodes; i++){
+         ring.put(hash(node+"#"+i), node);
+      }
+   }
+
+   public void remove(String node){
+      for (int i=0; i<virtualNodes; i++){
+         ring.remove(hash(node+"#"+i), node);
+      }
+   }
+
+   /**
+    * @return the node the key belongs to
+    */
+   public String nodeFor(String key){
+      if (ring.isEmpty()){
+         throw new IllegalStateException("no nodes on the ring");
+      }
+      Map.Entry<Long,String> e = ring.ceilingEntry(hash(key));
+      // past the last place the ring wraps around to the first
+      return ((e == null) ? ring.firstEntry() : e).getValue();
+   }
+
+   // first 8 bytes of the MD5 of the key, spreads well and is the same on every client
+   static long hash(String key){
+      try{
+         byte[] d = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+         long h = 0;
+         for (int i=0; i<8; i++){
+            h = (h << 8) | (d[i] & 0xff);
+         }
+         return h;
+      }catch(NoSuchAlgorithmException ex){
+         throw new IllegalStateException("MD5 is missing", ex);
+      }
+   }
+}
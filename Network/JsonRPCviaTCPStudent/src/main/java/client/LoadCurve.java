@@ -0,0 +1,92 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import server.StudentCollection;
+
+/**
+ * Purpose:
+ * Measures throughput and latency of the server under a growing number of
+ * clients. For each number of clients that many threads, each with its own
+ * connection, call get for random students one call after the other for a
+ * few seconds. Prints calls per second and latency percentiles per step,
+ * so the point where the server saturates and latency starts to climb
+ * can be seen. Needs a running server with some students.
+ */
+public class LoadCurve extends Object {
+
+   public static void main(String args[]) throws Exception {
+      String host = (args.length > 0) ? args[0] : "localhost";
+      int port = (args.length > 1) ? Integer.parseInt(args[1]) : 9099;
+      String levels = (args.length > 2) ? args[2] : "1,2,4,8,16,32,64";
+      int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+
+      StudentTcpProxy setup = new StudentTcpProxy(host, port);
+      String[] names = setup.collection().getNames();
+      setup.close();
+      if (names == null || names.length == 0) {
+         System.out.println("No students on "+host+":"+port+" (or it cannot be reached), add some first");
+         return;
+      }
+      System.out.println("clients    calls/s    p50 ms    p99 ms    max ms");
+      for (String level : levels.split(",")) {
+         run(host, port, Integer.parseInt(level.trim()), seconds, names);
+      }
+   }
+
+   private static void run(String host, int port, int clients, int seconds, String[] names)
+      throws InterruptedException {
+      long end = System.currentTimeMillis() + seconds*1000L;
+      long[][] latencies = new long[clients][];
+      int[] counts = new int[clients];
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int c = 0; c < clients; c++) {
+         final int me = c;
+         Thread t = new Thread(() -> {
+               StudentTcpProxy proxy = new StudentTcpProxy(host, port, 1);
+               StudentCollection sc = proxy.collection();
+               Random rand = new Random(me);
+               long[] ns = new long[1024];
+               int n = 0;
+               while (System.currentTimeMillis() < end) {
+                  long start = System.nanoTime();
+                  sc.get(names[rand.nextInt(names.length)]);
+                  if (n == ns.length) {
+                     ns = Arrays.copyOf(ns, 2*n);
+                  }
+                  ns[n++] = System.nanoTime() - start;
+               }
+               latencies[me] = ns;
+               counts[me] = n;
+               proxy.close();
+            });
+         threads.add(t);
+         t.start();
+      }
+      for (Thread t : threads) {
+         t.join();
+      }
+      int total = 0;
+      for (int n : counts) {
+         total += n;
+      }
+      if (total == 0) {
+         System.out.printf("%7d  no call finished in %d s%n", clients, seconds);
+         return;
+      }
+      long[] all = new long[total];
+      int at = 0;
+      for (int c = 0; c < clients; c++) {
+         if (counts[c] > 0) {   // a client whose connection failed has no latencies
+            System.arraycopy(latencies[c], 0, all, at, counts[c]);
+            at += counts[c];
+         }
+      }
+      Arrays.sort(all);
+      System.out.printf("%7d %10.0f %9.2f %9.2f %9.2f%n", clients, total/(double)seconds,
+                        all[total/2]/1e6, all[(int)(total*0.99)]/1e6, all[total-1]/1e6);
+   }
+}
@@ -0,0 +1,67 @@
+package client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+import server.NamePage;
+
+/**
+ * Goes through all student names of the server a page at a time (see
+ * StudentCollection.getNames(cursor, limit)). As soon as a page is there
+ * the next one is asked for, so it is usually on its way while the caller
+ * works through the current one. Only two pages are held at any time.
+ */
+class NameIterator extends Object implements Iterator<String> {
+
+   private static final long pageTimeoutSecs = 30;
+   private StudentTcpProxy proxy;
+   private int pageSize;
+   private String[] page = new String[0];
+   private int pos = 0;
+   private CompletableFuture<JSONObject> nextPage; // null after the last page
+
+   NameIterator(StudentTcpProxy proxy, int pageSize){
+      this.proxy = proxy;
+      this.pageSize = pageSize;
+      nextPage = proxy.callAsync("getNames", new Object[]{"", pageSize});
+   }
+
+   public boolean hasNext(){
+      while (pos == page.length){
+         if (nextPage == null){
+            return false;
+         }
+         NamePage p;
+         try{
+            JSONObject response = nextPage.get(pageTimeoutSecs, TimeUnit.SECONDS);
+            if (response.has("error")){
+               throw new IOException(response.getJSONObject("error").optString("message"));
+            }
+            p = new NamePage(response.getJSONObject("result"));
+         }catch(IOException ex){
+            nextPage = null;
+            throw new UncheckedIOException(ex);
+         }catch(Exception ex){
+            nextPage = null;
+            throw new UncheckedIOException(new IOException("getting names failed: "+ex.getMessage(), ex));
+         }
+         nextPage = (p.next == null) ? null
+            : proxy.callAsync("getNames", new Object[]{p.next, pageSize});
+         page = p.names;
+         pos = 0;
+      }
+      return true;
+   }
+
+   public String next(){
+      if (!hasNext()){
+         throw new NoSuchElementException();
+      }
+      return page[pos++];
+   }
+}
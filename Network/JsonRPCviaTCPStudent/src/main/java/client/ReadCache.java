@@ -0,0 +1,135 @@
+package client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Responses of read calls kept by the client, least recently used ones are
+ * dropped when there are more than maxEntries. The server tells us about
+ * every change on a subscription connection (see server.ChangeFeed), and
+ * the entries that may have changed are removed.
+ *
+ * Versions keep the cache from answering with something older than what
+ * we know of:
+ * - a response is only kept if its version is not older than the last
+ *   invalidation we got, otherwise it may have been read before a change
+ *   we already dropped
+ * - after a write of our own the cache answers nothing until the
+ *   invalidation with the write's version came in (read your writes)
+ * - while there is no subscription nothing is answered or kept, and if
+ *   the server's version moved on while we were away everything is dropped
+ */
+class ReadCache extends Object {
+
+   private static class Entry {
+      final JSONObject response;
+      final long version;
+      Entry(JSONObject response, long version){
+         this.response = response;
+         this.version = version;
+      }
+   }
+
+   private final Map<String,Entry> entries;
+   private long seenUpTo = 0;      // version of the last invalidation applied
+   private long required = 0;      // version of our last write
+   private long lostAt = 0;        // seenUpTo when the subscription went away
+   private boolean live = false;   // subscribed, so we hear about changes
+   private long hits = 0;
+   private long misses = 0;
+
+   public ReadCache(final int maxEntries){
+      entries = new LinkedHashMap<String,Entry>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest){
+               return size() > maxEntries;
+            }
+         };
+   }
+
+   public static String key(String method, JSONArray params){
+      return method+params.toString();
+   }
+
+   /**
+    * @return the cached response, or null if the server has to be asked
+    */
+   public synchronized JSONObject lookup(String key){
+      Entry e = (live && seenUpTo >= required) ? entries.get(key) : null;
+      if (e == null){
+         misses++;
+         return null;
+      }
+      hits++;
+      return e.response;
+   }
+
+   public synchronized void store(String key, JSONObject response){
+      long v = response.optLong("version",-1);
+      if (live && v >= 0 && v >= seenUpTo && !response.has("error")){
+         entries.put(key, new Entry(response, v));
+      }
+   }
+
+   /**
+    * A write of ours was answered with this version.
+    */
+   public synchronized void wrote(long version){
+      required = Math.max(required, version);
+   }
+
+   /**
+    * Applies an invalidation, params as sent by server.ChangeFeed.
+    */
+   public synchronized void invalidate(JSONObject params){
+      seenUpTo = Math.max(seenUpTo, params.getLong("version"));
+      if (params.optBoolean("all",false)){
+         entries.clear();
+         return;
+      }
+      entries.remove(key("get", new JSONArray().put(params.getString("name"))));
+      JSONArray ids = params.getJSONArray("ids");
+      for (int i=0; i<ids.length(); i++){
+         entries.remove(key("getNameById", new JSONArray().put(ids.get(i))));
+      }
+      JSONArray courses = params.getJSONArray("courses");
+      for (int i=0; i<courses.length(); i++){
+         entries.remove(key("getNamesByCourse", new JSONArray().put(courses.get(i))));
+      }
+      // every list of names may change when a student comes or goes
+      for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();){
+         if (it.next().startsWith("getNames[")){
+            it.remove();
+         }
+      }
+   }
+
+   public synchronized void lost(){
+      if (live){
+         lostAt = seenUpTo;
+      }
+      live = false;
+   }
+
+   /**
+    * Subscribed (again), the server is at this version.
+    */
+   public synchronized void subscribed(long version){
+      if (version > lostAt){
+         // there were changes we did not hear about
+         entries.clear();
+      }
+      seenUpTo = Math.max(seenUpTo, version);
+      live = true;
+   }
+
+   public synchronized long hits(){
+      return hits;
+   }
+
+   public synchronized long misses(){
+      return misses;
+   }
+}
@@ -0,0 +1,76 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import server.Student;
+
+/**
+ * Purpose:
+ * Moves students to the shard the consistent hash ring puts them on after
+ * shards were added or removed. Goes through the names of every shard
+ * (a page at a time) and moves each student whose shard changed: first it
+ * is added to its new shard, then removed from the old one, so it can
+ * always be found on one of them.
+ * With N shards and one more added, about 1/(N+1) of the students move.
+ *
+ * usage: Rebalance host:port,host:port,... [host:port,... of shards being removed]
+ */
+public class Rebalance extends Object {
+
+   public static void main(String args[]) throws Exception {
+      if (args.length < 1) {
+         System.out.println("Expected Arguments: <shards host:port,...> [leaving shards host:port,...]");
+         System.exit(0);
+      }
+      List<String> shards = ShardedStudentCollection.parseNodes(args[0]);
+      Set<String> scan = new LinkedHashSet<String>(shards);
+      if (args.length > 1) {
+         scan.addAll(ShardedStudentCollection.parseNodes(args[1]));
+      }
+      HashRing ring = new HashRing(shards);
+      ShardedStudentCollection target = new ShardedStudentCollection(shards);
+      long start = System.currentTimeMillis();
+      // first find out what has to move, so students moved onto a shard are not counted twice
+      Map<String,List<String>> plan = new LinkedHashMap<String,List<String>>();
+      int total = 0, moved = 0;
+      for (String node : scan) {
+         StudentTcpProxy from = proxy(node);
+         List<String> leaving = new ArrayList<String>();
+         for (String name : from.names(1000)) {
+            total++;
+            if (!ring.nodeFor(name).equals(node)) {
+               leaving.add(name);
+            }
+         }
+         plan.put(node, leaving);
+         from.close();
+      }
+      for (Map.Entry<String,List<String>> e : plan.entrySet()) {
+         StudentTcpProxy from = proxy(e.getKey());
+         for (String name : e.getValue()) {
+            Student stud = from.collection().get(name);
+            if (stud.name.equals(name) && target.add(stud)) {
+               from.collection().remove(name);
+               moved++;
+            } else {
+               System.out.println("could not move "+name+" from "+e.getKey());
+            }
+         }
+         System.out.println(e.getKey()+": moved "+e.getValue().size()+" students away");
+         from.close();
+      }
+      target.close();
+      System.out.printf("moved %d of %d students (%.1f%%) in %d ms%n", moved, total,
+                        100.0*moved/Math.max(1,total), System.currentTimeMillis()-start);
+   }
+
+   private static StudentTcpProxy proxy(String node) {
+      String[] hp = node.split(":");
+      return new StudentTcpProxy(hp[0], Integer.parseInt(hp[1]));
+   }
+}
@@ -0,0 +1,86 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.Student;
+
+/**
+ * Purpose:
+ * Measures how reads scale with replicas. Several client threads read
+ * random students for a few seconds, first from the primary alone, then
+ * spread over one, two, ... of the replicas, and the reads per second are
+ * printed for each. Then a student is changed and read back right away,
+ * many times, without and with read your writes, counting how often the
+ * read did not see the change.
+ * Needs a running primary and replicas that follow it.
+ */
+public class ReplicaBenchmark extends Object {
+
+   public static void main(String args[]) throws Exception {
+      String primary = (args.length > 0) ? args[0] : "localhost:9099";
+      List<String> replicas = ShardedStudentCollection.parseNodes((args.length > 1) ? args[1] : "");
+      int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+      int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+
+      ReplicatedStudentCollection setup = new ReplicatedStudentCollection(primary, replicas, true);
+      List<Student> studs = new ArrayList<Student>();
+      for (int i = 0; i < 500; i++) {
+         Student s = new Student("replicated"+i, 4000000+i, new String[]{"Ser321"});
+         studs.add(s);
+         setup.add(s);
+      }
+      for (int i = 0; i < replicas.size(); i++) {
+         setup.getNames();       // reads go round robin, so each replica has them before we start
+      }
+
+      for (int k = 0; k <= replicas.size(); k++) {
+         ReplicatedStudentCollection sc =
+            new ReplicatedStudentCollection(primary, replicas.subList(0, k), false);
+         AtomicLong reads = new AtomicLong(0);
+         long end = System.currentTimeMillis() + seconds*1000L;
+         List<Thread> all = new ArrayList<Thread>();
+         for (int t = 0; t < threads; t++) {
+            final Random rand = new Random(t);
+            Thread th = new Thread(() -> {
+                  while (System.currentTimeMillis() < end) {
+                     sc.get("replicated"+rand.nextInt(studs.size()));
+                     reads.incrementAndGet();
+                  }
+               });
+            all.add(th);
+            th.start();
+         }
+         for (Thread th : all) {
+            th.join();
+         }
+         System.out.printf("%d replicas: %8.0f reads/s (%d threads, %d answered by the primary instead)%n",
+                           k, reads.get()/(double)seconds, threads, sc.fallbacks());
+         sc.close();
+      }
+
+      if (!replicas.isEmpty()) {
+         for (boolean ryw : new boolean[]{false, true}) {
+            ReplicatedStudentCollection sc = new ReplicatedStudentCollection(primary, replicas, ryw);
+            int stale = 0, n = 200;
+            for (int i = 0; i < n; i++) {
+               String course = "Ser"+i;
+               sc.add(new Student("replicated0", 4000000, new String[]{"Ser321", course}));
+               if (!sc.get("replicated0").takes.contains(course)) {
+                  stale++;
+               }
+            }
+            System.out.printf("read your writes %-5s: %d of %d reads after a write did not see it%n",
+                              ryw, stale, n);
+            sc.close();
+         }
+      }
+
+      for (Student s : studs) {
+         setup.remove(s.name);
+      }
+      setup.close();
+   }
+}
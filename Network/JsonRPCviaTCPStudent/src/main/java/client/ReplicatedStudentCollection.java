@@ -0,0 +1,145 @@
+package client;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+
+import server.Codecs;
+import server.NamePage;
+import server.Student;
+import server.StudentCollection;
+
+/**
+ * A student collection kept by a primary server and copied by replica
+ * servers (see server.Replica). Changes go to the primary, reads go to the
+ * replicas in turn, so more replicas can answer more reads. A replica that
+ * does not answer, or is behind what this client needs, is passed over and
+ * the primary answers instead.
+ * A replica may be a little behind the primary. With readYourWrites every
+ * read carries the version of this client's last write (its token), and a
+ * replica waits until it has that version before it answers. The token can
+ * be handed to another client with token() and requireVersion(long).
+ */
+public class ReplicatedStudentCollection extends Object implements StudentCollection {
+
+   private StudentTcpProxy primary;
+   private StudentTcpProxy[] replicas;
+   private Codecs codecs = new Codecs();
+   private AtomicInteger next = new AtomicInteger(0);
+   private boolean readYourWrites;
+   // version of this client's last write
+   private AtomicLong token = new AtomicLong(0);
+   private AtomicLong fallbacks = new AtomicLong(0);
+
+   /**
+    * @param primary host:port of the primary
+    * @param replicas host:port of each replica, may be empty
+    * @param readYourWrites whether reads must see this client's writes
+    */
+   public ReplicatedStudentCollection(String primary, List<String> replicas, boolean readYourWrites){
+      this.primary = proxy(primary);
+      this.replicas = new StudentTcpProxy[replicas.size()];
+      for (int i=0; i<this.replicas.length; i++){
+         this.replicas[i] = proxy(replicas.get(i));
+      }
+      this.readYourWrites = readYourWrites;
+   }
+
+   private static StudentTcpProxy proxy(String node){
+      String[] hp = node.split(":");
+      return new StudentTcpProxy(hp[0], Integer.parseInt(hp[1]));
+   }
+
+   /**
+    * @return the version of this client's last write
+    */
+   public long token(){
+      return token.get();
+   }
+
+   /**
+    * Reads from now on see at least this version, e.g. the token of another client.
+    */
+   public void requireVersion(long version){
+      token.accumulateAndGet(version, Math::max);
+   }
+
+   /**
+    * @return how many reads the primary answered because no replica could
+    */
+   public long fallbacks(){
+      return fallbacks.get();
+   }
+
+   public void close(){
+      primary.close();
+      for (StudentTcpProxy r : replicas){
+         r.close();
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private <T> T write(Class<T> type, String method, Object... params){
+      JSONObject response = primary.call(method, params);
+      if (response != null && response.has("version")){
+         token.accumulateAndGet(response.getLong("version"), Math::max);
+      }
+      return (T)codecs.fromJson(type, (response == null) ? null : response.opt("result"));
+   }
+
+   @SuppressWarnings("unchecked")
+   private <T> T read(Class<T> type, String method, Object... params){
+      if (replicas.length > 0){
+         StudentTcpProxy replica = replicas[Math.floorMod(next.getAndIncrement(), replicas.length)];
+         try{
+            JSONObject response = replica.callAsync(method, params,
+                                                    readYourWrites ? token.get() : 0).join();
+            if (!response.has("error")){
+               return (T)codecs.fromJson(type, response.opt("result"));
+            }
+         }catch(Exception ex){
+            // replica is down, ask the primary
+         }
+         fallbacks.incrementAndGet();
+      }
+      JSONObject response = primary.call(method, params);
+      return (T)codecs.fromJson(type, (response == null) ? null : response.opt("result"));
+   }
+
+   public boolean saveToJsonFile(){
+      return write(boolean.class, "saveToJsonFile");
+   }
+
+   public boolean resetFromJsonFile(){
+      return write(boolean.class, "resetFromJsonFile");
+   }
+
+   public boolean add(Student stud){
+      return write(boolean.class, "add", stud.toJson());
+   }
+
+   public boolean remove(String aName){
+      return write(boolean.class, "remove", aName);
+   }
+
+   public Student get(String aName){
+      return read(Student.class, "get", aName);
+   }
+
+   public String getNameById(int id){
+      return read(String.class, "getNameById", id);
+   }
+
+   public String[] getNames(){
+      return read(String[].class, "getNames");
+   }
+
+   public NamePage getNames(String cursor, int limit){
+      return read(NamePage.class, "getNames", (cursor == null) ? JSONObject.NULL : cursor, limit);
+   }
+
+   public String[] getNamesByCourse(String course){
+      return read(String[].class, "getNamesByCourse", course);
+   }
+}
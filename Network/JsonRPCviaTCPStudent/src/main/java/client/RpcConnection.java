@@ -0,0 +1,166 @@
+package client;
+
+import java.net.*;
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.json.JSONObject;
+import org.json.JSONArray;
+
+import server.Framing;
+
+/**
+ * One long-lived TCP connection to the student server that carries many
+ * JsonRPC calls. Requests and responses are length-prefixed frames (see
+ * server.Framing).
+ * Several calls can be in flight at the same time, a reader thread matches
+ * each response to its request by the JsonRPC id.
+ */
+class RpcConnection extends Object {
+
+   private static final boolean debugOn = false;
+   private Socket sock;
+   private OutputStream out;
+   private DataInputStream in;
+   private Map<Integer,CompletableFuture<JSONObject>> pending =
+      new ConcurrentHashMap<Integer,CompletableFuture<JSONObject>>();
+   // batches are found by the id of their first call
+   private Map<Integer,CompletableFuture<JSONArray>> pendingBatches =
+      new ConcurrentHashMap<Integer,CompletableFuture<JSONArray>>();
+   private volatile boolean closed = false;
+   // gets calls from the server (notifications, no id), e.g. cache invalidations
+   private volatile Consumer<JSONObject> notifications = null;
+
+   public RpcConnection(String host, int port) throws IOException {
+      sock = new Socket(host,port);
+      sock.setTcpNoDelay(true);
+      out = new BufferedOutputStream(sock.getOutputStream());
+      in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+      Thread reader = new Thread(this::readResponses, "rpc-reader-"+host+":"+port);
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   public boolean isClosed(){
+      return closed;
+   }
+
+   public void onNotification(Consumer<JSONObject> handler){
+      notifications = handler;
+   }
+
+   /**
+    * Sends the call, which must already carry its id, without waiting for
+    * the response.
+    * @param theCall the JsonRPC request
+    * @return a future completed with the response that has the same id
+    */
+   public CompletableFuture<JSONObject> send(JSONObject theCall){
+      int id = theCall.getInt("id");
+      CompletableFuture<JSONObject> ret = new CompletableFuture<JSONObject>();
+      pending.put(id, ret);
+      try{
+         synchronized(out){
+            Framing.writeFrame(out, theCall.toString());
+         }
+      }catch(IOException ex){
+         pending.remove(id);
+         ret.completeExceptionally(ex);
+         close();
+      }
+      if (closed) {
+         // the reader may have failed everything before we registered
+         pending.remove(id);
+         ret.completeExceptionally(new IOException("connection closed"));
+      }
+      return ret;
+   }
+
+   /**
+    * Sends a JsonRPC 2.0 batch, every call must already carry its id.
+    * @param calls the requests, at least one
+    * @return a future completed with the array of responses, same order as calls
+    */
+   public CompletableFuture<JSONArray> sendBatch(JSONArray calls){
+      int id = calls.getJSONObject(0).getInt("id");
+      CompletableFuture<JSONArray> ret = new CompletableFuture<JSONArray>();
+      pendingBatches.put(id, ret);
+      try{
+         synchronized(out){
+            Framing.writeFrame(out, calls.toString());
+         }
+      }catch(IOException ex){
+         pendingBatches.remove(id);
+         ret.completeExceptionally(ex);
+         close();
+      }
+      if (closed) {
+         pendingBatches.remove(id);
+         ret.completeExceptionally(new IOException("connection closed"));
+      }
+      return ret;
+   }
+
+   private void readResponses(){
+      try{
+         String frame;
+         while((frame = Framing.readFrame(in)) != null){
+            debug("received: "+frame);
+            if (frame.startsWith("[")){
+               JSONArray responses = new JSONArray(frame);
+               JSONObject first = responses.optJSONObject(0);
+               CompletableFuture<JSONArray> f = pendingBatches.remove(
+                  (first == null) ? -1 : first.optInt("id",-1));
+               if (f != null){
+                  f.complete(responses);
+               }
+               continue;
+            }
+            JSONObject response = new JSONObject(frame);
+            if (response.has("method") && !response.has("id")){
+               Consumer<JSONObject> handler = notifications;
+               if (handler != null){
+                  handler.accept(response);
+               }
+               continue;
+            }
+            CompletableFuture<JSONObject> f = pending.remove(response.optInt("id",-1));
+            if (f != null){
+               f.complete(response);
+            }
+         }
+      }catch(Exception ex){
+         debug("reader stopped: "+ex.getMessage());
+      }
+      close();
+   }
+
+   public void close(){
+      closed = true;
+      try{
+         sock.close();
+      }catch(IOException ex){
+         // closing anyway
+      }
+      IOException gone = new IOException("connection closed");
+      for (Integer id : pending.keySet()){
+         CompletableFuture<JSONObject> f = pending.remove(id);
+         if (f != null){
+            f.completeExceptionally(gone);
+         }
+      }
+      for (Integer id : pendingBatches.keySet()){
+         CompletableFuture<JSONArray> f = pendingBatches.remove(id);
+         if (f != null){
+            f.completeExceptionally(gone);
+         }
+      }
+   }
+}
@@ -0,0 +1,95 @@
+package client;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.json.JSONObject;
+
+import server.Codecs;
+
+/**
+ * Makes a client for a remote interface with java.lang.reflect.Proxy, so
+ * the marshalling is not written by hand for every method. A call of an
+ * interface method becomes a JsonRPC call with the method name, each
+ * argument is turned into json by the codec for its declared type and the
+ * result back by the codec for the return type. Like the hand written
+ * proxy methods did, a call that fails prints why and returns the codec's
+ * missing value (false, 0, "unknown", ...) instead of throwing.
+ * A method that returns a CompletableFuture<T> does not wait: its name
+ * without the suffix "Async" is the remote method, T is decoded with its
+ * codec when the response comes, and a failed call fails the future.
+ */
+class RpcProxy extends Object implements InvocationHandler {
+
+   private StudentTcpProxy transport;
+   private Codecs codecs;
+
+   private RpcProxy(StudentTcpProxy transport, Codecs codecs){
+      this.transport = transport;
+      this.codecs = codecs;
+   }
+
+   public static <T> T create(Class<T> iface, StudentTcpProxy transport, Codecs codecs){
+      for (Method m : iface.getMethods()){
+         // find missing codecs when the proxy is made, not on the first call
+         codecs.get(resultType(m));
+         for (Class<?> p : m.getParameterTypes()){
+            codecs.get(p);
+         }
+      }
+      return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface},
+                                               new RpcProxy(transport, codecs)));
+   }
+
+   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class){
+         // equals, hashCode and toString are about the proxy itself
+         switch (method.getName()){
+         case "equals": return proxy == args[0];
+         case "hashCode": return System.identityHashCode(proxy);
+         default: return "RpcProxy for "+proxy.getClass().getInterfaces()[0].getName();
+         }
+      }
+      Class<?>[] types = method.getParameterTypes();
+      Object[] params = new Object[types.length];
+      for (int i=0; i<types.length; i++){
+         params[i] = codecs.toJson(types[i], args[i]);
+      }
+      if (method.getReturnType() == CompletableFuture.class){
+         String name = method.getName();
+         String remote = name.endsWith("Async") ? name.substring(0, name.length()-5) : name;
+         Class<?> type = resultType(method);
+         return transport.callAsync(remote, params).thenApply(response -> {
+               if (response.has("error")){
+                  throw new CompletionException(new IOException(
+                     "error from server for "+remote+": "+
+                     response.getJSONObject("error").optString("message")));
+               }
+               return codecs.fromJson(type, response.opt("result"));
+            });
+      }
+      JSONObject response = transport.call(method.getName(), params);
+      Object result = (response == null) ? null : response.opt("result");
+      return codecs.fromJson(method.getReturnType(), result);
+   }
+
+   // the type of the result: T for CompletableFuture<T>, else the return type
+   private static Class<?> resultType(Method m){
+      if (m.getReturnType() == CompletableFuture.class){
+         Type t = m.getGenericReturnType();
+         if (t instanceof ParameterizedType){
+            Type arg = ((ParameterizedType)t).getActualTypeArguments()[0];
+            if (arg instanceof Class){
+               return (Class<?>)arg;
+            }
+         }
+         throw new IllegalArgumentException(m.getName()+" must return CompletableFuture of a class");
+      }
+      return m.getReturnType();
+   }
+}
@@ -0,0 +1,167 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import server.NamePage;
+import server.Student;
+import server.StudentCollection;
+
+/**
+ * A student collection spread over several servers (shards). Each student
+ * lives on the shard its name hashes to on a consistent hash ring, so
+ * add, remove and get go to exactly one server. Calls that are not about
+ * one name (getNames, getNameById, getNamesByCourse) are sent to all
+ * shards at once and the answers put together. A shard that does not
+ * answer is left out of those with a message, like the single server
+ * proxy gives default values.
+ * Every client must use the same list of shards; after adding or removing
+ * a shard run Rebalance so the students move to where the ring now puts them.
+ */
+public class ShardedStudentCollection extends Object implements StudentCollection {
+
+   private HashRing ring;
+   private Map<String,StudentTcpProxy> proxies = new LinkedHashMap<String,StudentTcpProxy>();
+
+   /**
+    * @param nodes the shards as host:port
+    */
+   public ShardedStudentCollection(List<String> nodes){
+      for (String node : nodes){
+         String[] hp = node.split(":");
+         proxies.put(node, new StudentTcpProxy(hp[0], Integer.parseInt(hp[1])));
+      }
+      ring = new HashRing(proxies.keySet());
+   }
+
+   /**
+    * @param list host:port,host:port,...
+    */
+   public static List<String> parseNodes(String list){
+      List<String> ret = new ArrayList<String>();
+      for (String node : list.split(",")){
+         if (!node.trim().isEmpty()) ret.add(node.trim());
+      }
+      return ret;
+   }
+
+   /**
+    * @return host:port of the shard the student with this name belongs to
+    */
+   public String shardFor(String name){
+      return ring.nodeFor(name);
+   }
+
+   private StudentCollection shard(String name){
+      return proxies.get(shardFor(name)).collection();
+   }
+
+   // asks every shard at once, waits for all, leaves out those that failed
+   private <T> List<T> gather(Function<StudentCollectionAsync,CompletableFuture<T>> call){
+      Map<String,CompletableFuture<T>> futures = new LinkedHashMap<String,CompletableFuture<T>>();
+      for (Map.Entry<String,StudentTcpProxy> e : proxies.entrySet()){
+         futures.put(e.getKey(), call.apply(e.getValue().async()));
+      }
+      List<T> ret = new ArrayList<T>();
+      for (Map.Entry<String,CompletableFuture<T>> e : futures.entrySet()){
+         try{
+            ret.add(e.getValue().join());
+         }catch(Exception ex){
+            System.out.println("shard "+e.getKey()+" did not answer: "+ex.getMessage());
+         }
+      }
+      return ret;
+   }
+
+   public void close(){
+      for (StudentTcpProxy p : proxies.values()){
+         p.close();
+      }
+   }
+
+   public boolean saveToJsonFile() {
+      List<Boolean> all = gather(a -> a.saveToJsonFileAsync());
+      return all.size() == proxies.size() && !all.contains(false);
+   }
+
+   public boolean resetFromJsonFile() {
+      List<Boolean> all = gather(a -> a.resetFromJsonFileAsync());
+      return all.size() == proxies.size() && !all.contains(false);
+   }
+
+   public boolean add(Student stud) {
+      return shard(stud.name).add(stud);
+   }
+
+   public boolean remove(String aName) {
+      return shard(aName).remove(aName);
+   }
+
+   public Student get(String aName) {
+      return shard(aName).get(aName);
+   }
+
+   public String getNameById(int id) {
+      for (String name : gather(a -> a.getNameByIdAsync(id))){
+         if (!name.equals("unknown")){
+            return name;
+         }
+      }
+      return "unknown";
+   }
+
+   public String[] getNames() {
+      List<String> ret = new ArrayList<String>();
+      for (String[] names : gather(a -> a.getNamesAsync())){
+         ret.addAll(Arrays.asList(names));
+      }
+      return ret.toArray(new String[0]);
+   }
+
+   /**
+    * Every shard gives its page after the same name, the merged page is
+    * the first limit names of all of them. A shard whose page was cut short
+    * (by limit or by its own page size) may have names after its last one
+    * that come before other shards' names, so the merged page ends at the
+    * smallest last name of those. The token only holds a name, so it works
+    * for all shards.
+    */
+   public NamePage getNames(String cursor, int limit) {
+      List<String> merged = new ArrayList<String>();
+      boolean more = false;
+      String end = null;    // no shard has unread names before this one
+      for (NamePage page : gather(a -> a.getNamesAsync(cursor, limit))){
+         merged.addAll(Arrays.asList(page.names));
+         if (page.next != null){
+            more = true;
+            String last = page.names[page.names.length-1];
+            if (end == null || last.compareTo(end) < 0) end = last;
+         }
+      }
+      Collections.sort(merged);
+      int n = merged.size();
+      if (end != null){
+         int at = Collections.binarySearch(merged, end);
+         n = (at >= 0) ? at + 1 : -at - 1;
+      }
+      if (limit > 0 && limit < n) n = limit;
+      more = more || merged.size() > n;
+      List<String> names = merged.subList(0, n);
+      String next = (more && n > 0) ? NamePage.token(names.get(n-1)) : null;
+      return new NamePage(names.toArray(new String[0]), next);
+   }
+
+   public String[] getNamesByCourse(String course) {
+      List<String> ret = new ArrayList<String>();
+      for (String[] names : gather(a -> a.getNamesByCourseAsync(course))){
+         ret.addAll(Arrays.asList(names));
+      }
+      return ret.toArray(new String[0]);
+   }
+}
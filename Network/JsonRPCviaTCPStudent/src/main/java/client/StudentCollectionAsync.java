@@ -0,0 +1,29 @@
+package client;
+
+import java.util.concurrent.CompletableFuture;
+
+import server.NamePage;
+import server.Student;
+
+/**
+ * Purpose: the methods of server.StudentCollection without waiting. Each
+ * one sends its call and returns a future for the result, so a client can
+ * have many calls in flight on the pooled connections and combine the
+ * results as they come in. A future fails (instead of giving a default
+ * value) if the call cannot be made, times out or the server answers
+ * with an error.
+ * Get one from StudentTcpProxy.async(). A method named xAsync calls the
+ * server method x, so a method added to StudentCollection only needs its
+ * xAsync line here.
+ */
+public interface StudentCollectionAsync {
+   public CompletableFuture<Boolean> saveToJsonFileAsync();
+   public CompletableFuture<Boolean> resetFromJsonFileAsync();
+   public CompletableFuture<Boolean> addAsync(Student stud);
+   public CompletableFuture<Boolean> removeAsync(String aName);
+   public CompletableFuture<Student> getAsync(String aName);
+   public CompletableFuture<String> getNameByIdAsync(int id);
+   public CompletableFuture<String[]> getNamesAsync();
+   public CompletableFuture<NamePage> getNamesAsync(String cursor, int limit);
+   public CompletableFuture<String[]> getNamesByCourseAsync(String course);
+}
@@ -36,18 +36,25 @@ public class StudentCollectionClient extends Object {
       
       try {
          // setup connection
-         if(args.length >= 2){
-            host = args[0];
-            port = args[1];
+         StudentCollection sc;
+         if(args.length == 1){
+            // host:port,host:port,... are the shards of one collection
+            System.out.println("Using shards: "+args[0]);
+            sc = new ShardedStudentCollection(ShardedStudentCollection.parseNodes(args[0]));
+         }else{
+            if(args.length >= 2){
+               host = args[0];
+               port = args[1];
+            }
+            String url = "http://"+host+":"+port+"/";
+            System.out.println("Opening connection to: "+url);
+            sc = new StudentTcpProxy(host, Integer.parseInt(port)).collection();
          }
-         String url = "http://"+host+":"+port+"/";
-         System.out.println("Opening connection to: "+url);
-         StudentTcpProxy sc = (StudentTcpProxy)new StudentTcpProxy(host, Integer.parseInt(port));
 
          // get input
          BufferedReader stdin = new BufferedReader(
             new InputStreamReader(System.in));
-         System.out.print("Enter end or {add|get|getNameById|getNames|remove} followed by args>");
+         System.out.print("Enter end or {add|get|getNameById|getNames|getNamesByCourse|remove} followed by args>");
          String inStr = stdin.readLine();
          StringTokenizer st = new StringTokenizer(inStr);
          String opn = st.nextToken();
@@ -84,12 +91,20 @@ public class StudentCollectionClient extends Object {
                }
                boolean result = sc.remove(name);
                System.out.println("remove "+name+" result "+result);
+            }else if (opn.equalsIgnoreCase("getNamesByCourse")) {
+               String course = st.nextToken();
+               String[] result = sc.getNamesByCourse(course);
+               System.out.print(course+" is taken by: ");
+               for (int i = 0; i < result.length; i++){
+                  System.out.print(result[i]+", ");
+               }
+               System.out.println();
             }else if (opn.equalsIgnoreCase("getNamebyid")) {
                int idNo = Integer.parseInt(st.nextToken());
                String result = sc.getNameById(idNo);
                System.out.println(result+" has id number "+idNo);
             }
-            System.out.print("Enter end or {add|get|getNameById|getNames|remove} followed by args>");
+            System.out.print("Enter end or {add|get|getNameById|getNames|getNamesByCourse|remove} followed by args>");
             inStr = stdin.readLine();
             st = new StringTokenizer(inStr);
             opn = st.nextToken();
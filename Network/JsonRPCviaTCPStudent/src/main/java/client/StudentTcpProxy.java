@@ -1,19 +1,34 @@
 package client;
 
+import server.Codecs;
+import server.NamePage;
 import server.Student;
 import server.StudentCollection;
 import java.net.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
 /**
  * A class for client-server connections with a threaded server.
- * The student collection client proxy implements the server methods
- * by marshalling/unmarshalling parameters and results and using a TCP
- * connection to request the method be executed on the server.
- * Byte arrays are used for communication to support multiple langs.
+ * The student collection client proxy sends JsonRPC calls over TCP
+ * connections to have methods executed on the server. collection() gives
+ * a StudentCollection whose methods are made from the interface (see
+ * RpcProxy), so they marshal their parameters and results with codecs
+ * instead of code written for each method. The proxy is a StudentCollection
+ * itself too, its methods call the ones of collection().
+ * Connections are kept open and reused for many calls. The proxy keeps a
+ * small pool of them and several calls can share one connection at the same
+ * time, responses are matched to requests by the JsonRPC id.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -21,14 +36,30 @@ import org.json.JSONArray;
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
+   private static final int defaultPoolSize = 2;
+   private static final long callTimeoutSecs = 30;
+   private static final int maxBatch = 1000; // calls per batch frame
+   private static AtomicInteger id = new AtomicInteger(0);
    private String host;
    private int port;
+   private RpcConnection[] pool;
+   private AtomicInteger next = new AtomicInteger(0);
+   private StudentCollection collection;
+   private StudentCollectionAsync async;
+   // optional read cache, kept up to date by invalidations on its own connection
+   private ReadCache cache;
+   private Set<String> cacheable;
+   private volatile RpcConnection subscription;
+   private static final String[] readMethods = {"get","getNameById","getNames","getNamesByCourse"};
    
    public StudentTcpProxy (String host, int port){
+      this(host, port, defaultPoolSize);
+   }
+
+   public StudentTcpProxy (String host, int port, int poolSize){
       this.host = host;
       this.port = port;
+      this.pool = new RpcConnection[Math.max(1,poolSize)];
    }
 
    private void debug(String message) {
@@ -36,6 +67,111 @@ public class StudentTcpProxy extends Object implements StudentCollection {
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Picks the next connection of the pool round robin, connecting again
+    * if it was never opened or has broken.
+    */
+   private RpcConnection connection() throws IOException {
+      int i = Math.floorMod(next.getAndIncrement(), pool.length);
+      synchronized(pool){
+         if (pool[i] == null || pool[i].isClosed()){
+            pool[i] = new RpcConnection(host, port);
+         }
+         return pool[i];
+      }
+   }
+
+   /**
+    * Keeps the responses of the StudentCollection read methods in a cache.
+    * @param maxEntries at most that many responses are kept, least recently used go first
+    */
+   public void enableCache(int maxEntries){
+      enableCache(maxEntries, readMethods);
+   }
+
+   /**
+    * Keeps the responses of the given methods in a cache. The server must
+    * send invalidations that cover them (see server.ChangeFeed).
+    */
+   public synchronized void enableCache(int maxEntries, String... methods){
+      cacheable = new HashSet<String>(Arrays.asList(methods));
+      cache = new ReadCache(maxEntries);
+      subscribe();
+   }
+
+   /**
+    * @return {hits, misses} of the cache, zeros if there is none
+    */
+   public long[] cacheStats(){
+      ReadCache c = cache;
+      return (c == null) ? new long[]{0,0} : new long[]{c.hits(), c.misses()};
+   }
+
+   // (re)opens the subscription connection if it is not there, the cache answers nothing without one
+   private void subscribe(){
+      RpcConnection s = subscription;
+      if (s != null && !s.isClosed()){
+         return;
+      }
+      synchronized(this){
+         if (subscription != null && !subscription.isClosed()){
+            return;
+         }
+         resubscribe();
+      }
+   }
+
+   private void resubscribe(){
+      cache.lost();
+      try{
+         subscription = new RpcConnection(host, port);
+         final ReadCache c = cache;
+         subscription.onNotification(note -> {
+               if (note.optString("method").equals("invalidate")){
+                  c.invalidate(note.getJSONObject("params"));
+               }
+            });
+         JSONObject response = subscription.send(makeCall("rpc.subscribe", new Object[0]))
+            .get(callTimeoutSecs, TimeUnit.SECONDS);
+         c.subscribed(response.getLong("result"));
+      }catch(Exception ex){
+         System.out.println("cannot subscribe to invalidations, not caching: "+ex.getMessage());
+         if (subscription != null) subscription.close();
+      }
+   }
+
+   /**
+    * Closes all pooled connections.
+    */
+   public void close(){
+      synchronized(this){
+         if (subscription != null) subscription.close();
+      }
+      synchronized(pool){
+         for (int i=0; i<pool.length; i++){
+            if (pool[i] != null) pool[i].close();
+            pool[i] = null;
+         }
+      }
+   }
+
+   /**
+    * Builds the JsonRPC request with a new id.
+    */
+   protected JSONObject makeCall(String method, Object[] params){
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      theCall.put("id",id.incrementAndGet());
+      theCall.put("jsonrpc","2.0");
+      ArrayList<Object> al = new ArrayList<Object>();
+      for (int i=0; i<params.length; i++){
+         al.add(params[i]);
+      }
+      JSONArray paramsJson = new JSONArray(al);
+      theCall.put("params",paramsJson);
+      return theCall;
+   }
+
    /**
     * Generic method caller using TCP
     * @param method
@@ -43,108 +179,240 @@ public class StudentTcpProxy extends Object implements StudentCollection {
     * @return
     */
    public String callMethod(String method, Object[] params){
-      // create JSON RPC message
-      JSONObject theCall = new JSONObject();
-      String ret = "{}";
+      JSONObject response = call(method, params);
+      return (response == null) ? "{}" : response.toString();
+   }
+
+   // the response, or null if the call could not be made
+   JSONObject call(String method, Object[] params){
+      JSONObject ret = null;
       try{
-         debug("Request is: "+theCall.toString());
-         theCall.put("method",method);
-         theCall.put("id",id);
-         theCall.put("jsonrpc","2.0");
-         ArrayList<Object> al = new ArrayList();
-         for (int i=0; i<params.length; i++){
-            al.add(params[i]);
-         }
-         JSONArray paramsJson = new JSONArray(al);
-         theCall.put("params",paramsJson);
-
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
-
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
-         
-         // return
+         ret = callAsync(method, params).get(callTimeoutSecs, TimeUnit.SECONDS);
          debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
+         if (ret.has("error")){
+            System.out.println("error from server for "+method+": "+
+                               ret.getJSONObject("error").optString("message"));
+         }
+      }catch(ExecutionException ex){
+         System.out.println("exception in callMethod: "+ex.getCause().getMessage());
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
       return ret;
    }
 
-   public boolean saveToJsonFile() {
-      boolean ret = false;
-      String result = callMethod("saveToJsonFile", new Object[]{});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+   /**
+    * Sends the call and returns at once. Answered from the cache if there
+    * is one and it has the response.
+    * @return the response, which may be an error response; the future
+    *         fails if the call cannot be made or is not answered in time
+    */
+   CompletableFuture<JSONObject> callAsync(String method, Object[] params){
+      return callAsync(method, params, 0);
    }
-   
-   public boolean resetFromJsonFile() {
-      boolean ret = false;
-      String result = callMethod("resetFromJsonFile", new Object[]{});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+
+   /**
+    * Like callAsync(method, params), for a server that must have at least
+    * the given version: it waits a little to catch up and else answers with
+    * an error (a replica behind its primary, see server.Replica). Such calls
+    * are not answered from the cache.
+    */
+   CompletableFuture<JSONObject> callAsync(String method, Object[] params, long minVersion){
+      ReadCache c = cache;
+      boolean read = (c != null) && cacheable.contains(method) && minVersion <= 0;
+      try{
+         JSONObject theCall = makeCall(method, params);
+         if (minVersion > 0){
+            theCall.put("minVersion",minVersion);
+         }
+         final String key;
+         if (read){
+            subscribe();
+            key = ReadCache.key(method, theCall.getJSONArray("params"));
+            JSONObject hit = c.lookup(key);
+            if (hit != null){
+               debug("cache hit for "+key);
+               return CompletableFuture.completedFuture(hit);
+            }
+         }else{
+            key = null;
+         }
+         debug("Request is: "+theCall.toString());
+         CompletableFuture<JSONObject> ret = connection().send(theCall)
+            .orTimeout(callTimeoutSecs, TimeUnit.SECONDS);
+         if (c == null){
+            return ret;
+         }
+         return ret.thenApply(response -> {
+               if (read){
+                  c.store(key, response);
+               }else if (!cacheable.contains(method) && response.has("version")){
+                  c.wrote(response.getLong("version"));
+               }
+               return response;
+            });
+      }catch(IOException ex){
+         CompletableFuture<JSONObject> ret = new CompletableFuture<JSONObject>();
+         ret.completeExceptionally(ex);
+         return ret;
+      }
    }
-   
-   public boolean add(Student stud) {
-      boolean ret = false;
-      String result = callMethod("add", new Object[]{stud.toJson()});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+
+   /**
+    * All student names of the server in name order, fetched a page at a time
+    * while iterating, the next page is asked for before it is needed.
+    * Names added or removed while iterating may or may not be seen, all
+    * others are seen exactly once.
+    * @throws java.io.UncheckedIOException from the iterator if a page cannot be had
+    */
+   public Iterable<String> names(int pageSize){
+      return () -> new NameIterator(this, pageSize);
    }
-   
-   public boolean remove(String aName) {
-      boolean ret = false;
-      String result = callMethod("remove", new Object[]{aName});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+
+   /**
+    * A client for any remote interface, made from the interface itself.
+    * @param codecs the codecs for the parameter and return types
+    */
+   public <T> T remote(Class<T> iface, Codecs codecs){
+      return RpcProxy.create(iface, this, codecs);
    }
-   
-   public Student get(String aName) {
-      Student ret = new Student("unknown",-999, new String[]{"unknown"});
-      String result = callMethod("get", new Object[]{aName});
-      JSONObject res = new JSONObject(result);
-      JSONObject studJson = res.optJSONObject("result");
-      ret = new Student(studJson);
-      return ret;
+
+   /**
+    * The StudentCollection of the server with methods that do not wait,
+    * calls go over this proxy's connections.
+    */
+   public StudentCollectionAsync async(){
+      synchronized(this){
+         if (async == null){
+            async = remote(StudentCollectionAsync.class, new Codecs());
+         }
+         return async;
+      }
    }
-   
-   public String getNameById(int id) {
-      String ret = "unknown";
-      String result = callMethod("getNameById", new Object[]{id});
-      JSONObject res = new JSONObject(result);
-      ret = res.optString("result","unknown");
-      return ret;
+
+   /**
+    * The StudentCollection of the server, calls go over this proxy's connections.
+    */
+   public StudentCollection collection(){
+      synchronized(this){
+         if (collection == null){
+            collection = remote(StudentCollection.class, new Codecs());
+         }
+         return collection;
+      }
    }
-   
-   public String[] getNames() {
-      String[] ret = new String[]{};
-      String result = callMethod("getNames", new Object[0]);
-      debug("result of getNames is: "+result);
-      JSONObject res = new JSONObject(result);
-      JSONArray namesJson = res.optJSONArray("result");
-      ret = new String[namesJson.length()];
-      for (int i=0; i<namesJson.length(); i++){
-         ret[i] = namesJson.optString(i,"unknown");
+
+   public boolean saveToJsonFile(){
+      return collection().saveToJsonFile();
+   }
+
+   public boolean resetFromJsonFile(){
+      return collection().resetFromJsonFile();
+   }
+
+   public boolean add(Student aStud){
+      return collection().add(aStud);
+   }
+
+   public boolean remove(String aName){
+      return collection().remove(aName);
+   }
+
+   public Student get(String aName){
+      return collection().get(aName);
+   }
+
+   public String getNameById(int id){
+      return collection().getNameById(id);
+   }
+
+   public String[] getNames(){
+      return collection().getNames();
+   }
+
+   public NamePage getNames(String cursor, int limit){
+      return collection().getNames(cursor, limit);
+   }
+
+   public String[] getNamesByCourse(String course){
+      return collection().getNamesByCourse(course);
+   }
+
+   /**
+    * Collects calls and sends them as one JsonRPC 2.0 batch, so many calls
+    * cost one round trip instead of one each.
+    */
+   public class Batch {
+      private JSONArray calls = new JSONArray();
+
+      /**
+       * Adds a call to the batch.
+       * @return position of its response in the list returned by execute
+       */
+      public int call(String method, Object... params){
+         calls.put(makeCall(method, params));
+         return calls.length()-1;
+      }
+
+      public int size(){
+         return calls.length();
+      }
+
+      /**
+       * Sends all calls, splitting very large batches into several frames.
+       * @return one response per call in the order they were added, a call
+       *         that failed has an "error" instead of a "result"
+       */
+      public List<JSONObject> execute() throws IOException {
+         List<JSONObject> ret = new ArrayList<JSONObject>(calls.length());
+         try{
+            for (int start=0; start<calls.length(); start+=maxBatch){
+               JSONArray chunk = new JSONArray();
+               for (int i=start; i<Math.min(calls.length(), start+maxBatch); i++){
+                  chunk.put(calls.get(i));
+               }
+               JSONArray responses = connection().sendBatch(chunk)
+                  .get(callTimeoutSecs, TimeUnit.SECONDS);
+               ReadCache c = cache;
+               for (int i=0; i<responses.length(); i++){
+                  JSONObject response = responses.getJSONObject(i);
+                  ret.add(response);
+                  if (c != null && response.has("version")){
+                     c.wrote(response.getLong("version"));
+                  }
+               }
+            }
+         }catch(IOException ex){
+            throw ex;
+         }catch(Exception ex){
+            throw new IOException("batch failed: "+ex.getMessage(), ex);
+         }
+         return ret;
+      }
+   }
+
+   public Batch batch(){
+      return new Batch();
+   }
+
+   /**
+    * Adds all students with batched calls.
+    * @return for each student whether the add succeeded
+    */
+   public boolean[] addAll(List<Student> studs) {
+      boolean[] ret = new boolean[studs.size()];
+      Batch b = batch();
+      for (Student stud : studs){
+         b.call("add", stud.toJson());
+      }
+      try{
+         List<JSONObject> responses = b.execute();
+         for (int i=0; i<ret.length; i++){
+            ret[i] = responses.get(i).optBoolean("result",false);
+         }
+      }catch(IOException ex){
+         System.out.println("exception in addAll: "+ex.getMessage());
       }
       return ret;
    }
 }
-
@@ -0,0 +1,59 @@
+package server;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Purpose: prints messages to stdout from its own thread, so the threads
+ * serving calls never wait on the console. Messages wait in a bounded
+ * queue, when it is full they are dropped and counted instead of slowing
+ * the server down, and the writer says how many were lost.
+ */
+class AsyncLog extends Object {
+
+   private final BlockingQueue<String> queue;
+   private final AtomicLong dropped = new AtomicLong(0);
+   private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+
+   public AsyncLog(int capacity) {
+      queue = new ArrayBlockingQueue<String>(capacity);
+      Thread writer = new Thread(this::write, "async-log");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   /**
+    * Never blocks.
+    */
+   public void log(String message) {
+      if (!queue.offer(message)) {
+         dropped.incrementAndGet();
+      }
+   }
+
+   private void write() {
+      List<String> batch = new ArrayList<String>();
+      try {
+         while (true) {
+            batch.add(queue.take());
+            queue.drainTo(batch);
+            for (String message : batch) {
+               out.write(message);
+               out.write(System.lineSeparator());
+            }
+            batch.clear();
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+               out.write("("+lost+" log messages dropped)"+System.lineSeparator());
+            }
+            out.flush();
+         }
+      } catch (InterruptedException | IOException e) {
+         // stop logging
+      }
+   }
+}
@@ -0,0 +1,219 @@
+package server;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: tells subscribed clients which students changed, so they can
+ * drop what they cached about them, and sends every change in full to
+ * replicas (see Replica).
+ * Every change gets the next version number. The store reports changes one
+ * at a time in log order, once they are logged, so versions are handed out
+ * in order and without gaps. A notification is a JsonRPC call without id:
+ *   {"jsonrpc":"2.0","method":"invalidate","params":{"version":7,
+ *    "name":"Tim","ids":[25],"courses":["Ser321"]}}
+ * or, after the collection was reset from its file, "all":true instead of
+ * name, ids and courses. Replicas get
+ *   {"jsonrpc":"2.0","method":"replicate","params":{"seq":7,"op":"add","student":{...}}}
+ * with op add, remove (and "name" instead of "student") or all.
+ * Responses carry a version too (see StudentCollectionSkeleton): the
+ * version of the change a call made, or for a call that changed nothing
+ * the version before it ran.
+ */
+class ChangeFeed extends Object {
+
+   private final AtomicLong version = new AtomicLong(0);
+   private final Set<Consumer<String>> subscribers = ConcurrentHashMap.newKeySet();
+   private final Set<Consumer<String>> replicas = ConcurrentHashMap.newKeySet();
+   // version of the last change made by the call running on this thread, 0 for none
+   private final ThreadLocal<long[]> callChange = ThreadLocal.withInitial(() -> new long[1]);
+   // a replica's versions are the primary's, see follow
+   private volatile boolean following = false;
+   private long nextVersion = -1;
+   private final Object versionMonitor = new Object();
+   private final AtomicInteger waiting = new AtomicInteger(0);
+
+   public long version() {
+      return version.get();
+   }
+
+   /**
+    * @param to gets every notification frame, must not block
+    * @return the version the subscriber is up to date with
+    */
+   public long subscribe(Consumer<String> to) {
+      subscribers.add(to);
+      return version.get();
+   }
+
+   /**
+    * @param to gets every change in full, must not block
+    * @return the version the stream continues from
+    */
+   public long subscribeReplica(Consumer<String> to) {
+      replicas.add(to);
+      return version.get();
+   }
+
+   public void unsubscribe(Consumer<String> to) {
+      subscribers.remove(to);
+      replicas.remove(to);
+   }
+
+   /**
+    * For a replica: changes no longer count up the version, it only moves
+    * to the versions of the primary given with nextIs and reached.
+    */
+   public void follow() {
+      following = true;
+   }
+
+   /**
+    * For a replica: the next change is the primary's change v, the version
+    * moves to v when it is made.
+    */
+   public void nextIs(long v) {
+      nextVersion = v;
+   }
+
+   /**
+    * For a replica: it has everything up to version v of the primary.
+    */
+   public void reached(long v) {
+      version.set(v);
+      wakeWaiters();
+   }
+
+   /**
+    * Waits until the version is at least v.
+    * @return false if it was not within the timeout
+    */
+   public boolean awaitVersion(long v, long timeoutMs) throws InterruptedException {
+      if (version.get() >= v) {
+         return true;
+      }
+      long end = System.currentTimeMillis() + timeoutMs;
+      waiting.incrementAndGet();
+      try {
+         synchronized (versionMonitor) {
+            while (version.get() < v) {
+               long left = end - System.currentTimeMillis();
+               if (left <= 0) {
+                  return false;
+               }
+               versionMonitor.wait(left);
+            }
+         }
+      } finally {
+         waiting.decrementAndGet();
+      }
+      return true;
+   }
+
+   public void beginCall() {
+      callChange.get()[0] = 0;
+   }
+
+   /**
+    * @return the version of the change the call made, or before if it made none
+    */
+   public long endCall(long before) {
+      long v = callChange.get()[0];
+      return (v == 0) ? before : v;
+   }
+
+   private long next() {
+      long v;
+      if (!following) {
+         v = version.incrementAndGet();
+      } else {
+         if (nextVersion >= 0) {
+            version.set(nextVersion);
+            nextVersion = -1;
+         }
+         v = version.get();
+      }
+      callChange.get()[0] = v;
+      wakeWaiters();
+      return v;
+   }
+
+   private void wakeWaiters() {
+      if (waiting.get() > 0) {
+         synchronized (versionMonitor) {
+            versionMonitor.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * A student was added, replaced or removed. Called by the store in log order, on the thread that made the change.
+    */
+   public void changed(Student old, Student now) {
+      long v = next();
+      if (!replicas.isEmpty()) {
+         JSONObject rec = new JSONObject();
+         rec.put("seq", v);
+         if (now != null) {
+            rec.put("op", "add");
+            rec.put("student", now.toJson());
+         } else {
+            rec.put("op", "remove");
+            rec.put("name", old.name);
+         }
+         publish(replicas, "replicate", rec);
+      }
+      if (subscribers.isEmpty()) {
+         return;
+      }
+      Set<Integer> ids = new TreeSet<Integer>();
+      Set<String> courses = new TreeSet<String>();
+      for (Student s : new Student[]{old, now}) {
+         if (s != null) {
+            ids.add(s.studentid);
+            courses.addAll(s.takes);
+         }
+      }
+      JSONObject params = new JSONObject();
+      params.put("version", v);
+      params.put("name", (now != null) ? now.name : old.name);
+      params.put("ids", new JSONArray(ids));
+      params.put("courses", new JSONArray(courses));
+      publish(subscribers, "invalidate", params);
+   }
+
+   /**
+    * Everything may have changed, after the collection was reset from its file.
+    */
+   public void changedAll() {
+      long v = next();
+      JSONObject rec = new JSONObject();
+      rec.put("seq", v);
+      rec.put("op", "all");
+      publish(replicas, "replicate", rec);
+      JSONObject params = new JSONObject();
+      params.put("version", v);
+      params.put("all", true);
+      publish(subscribers, "invalidate", params);
+   }
+
+   private void publish(Set<Consumer<String>> to, String method, JSONObject params) {
+      if (to.isEmpty()) {
+         return;
+      }
+      JSONObject note = new JSONObject();
+      note.put("jsonrpc","2.0");
+      note.put("method",method);
+      note.put("params",params);
+      String frame = note.toString();
+      for (Consumer<String> s : to) {
+         s.accept(frame);
+      }
+   }
+}
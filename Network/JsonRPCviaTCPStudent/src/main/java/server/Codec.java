@@ -0,0 +1,19 @@
+package server;
+
+/**
+ * Purpose: turns values of one Java type into what goes into a JsonRPC
+ * message (JSONObject, JSONArray, String, Number, Boolean, JSONObject.NULL or
+ * a JSONString that prints itself) and back. Used for the parameters and results of the generated skeleton
+ * dispatch and client proxy, see Codecs.
+ */
+public interface Codec<T> {
+   public Object toJson(T value);
+   public T fromJson(Object json);
+
+   /**
+    * What a client returns when a call fails or has no result.
+    */
+   public default T missing(){
+      return null;
+   }
+}
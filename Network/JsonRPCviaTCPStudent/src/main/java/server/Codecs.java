@@ -0,0 +1,121 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: the codecs for the parameter and return types of a remote
+ * interface, looked up by Java type. Comes with codecs for the types of
+ * StudentCollection; codecs for other types can be registered, so a new
+ * interface method with a new type only needs its codec.
+ */
+public class Codecs extends Object {
+
+   private Map<Class<?>,Codec<?>> codecs = new ConcurrentHashMap<Class<?>,Codec<?>>();
+
+   public Codecs(){
+      Codec<Boolean> bool = new Codec<Boolean>(){
+            public Object toJson(Boolean value){ return value; }
+            public Boolean fromJson(Object json){
+               return (json instanceof Boolean) ? (Boolean)json : Boolean.valueOf(json.toString());
+            }
+            public Boolean missing(){ return false; }
+         };
+      register(boolean.class, bool);
+      register(Boolean.class, bool);
+      Codec<Integer> integer = new Codec<Integer>(){
+            public Object toJson(Integer value){ return value; }
+            public Integer fromJson(Object json){
+               return (json instanceof Number) ? ((Number)json).intValue() : Integer.valueOf(json.toString());
+            }
+            public Integer missing(){ return 0; }
+         };
+      register(int.class, integer);
+      register(Integer.class, integer);
+      Codec<Long> lng = new Codec<Long>(){
+            public Object toJson(Long value){ return value; }
+            public Long fromJson(Object json){
+               return (json instanceof Number) ? ((Number)json).longValue() : Long.valueOf(json.toString());
+            }
+            public Long missing(){ return 0L; }
+         };
+      register(long.class, lng);
+      register(Long.class, lng);
+      register(String.class, new Codec<String>(){
+            public Object toJson(String value){ return value; }
+            public String fromJson(Object json){ return json.toString(); }
+            public String missing(){ return "unknown"; }
+         });
+      register(String[].class, new Codec<String[]>(){
+            public Object toJson(String[] value){
+               JSONArray ret = new JSONArray();
+               for (String s : value){
+                  ret.put(s);
+               }
+               return ret;
+            }
+            public String[] fromJson(Object json){
+               JSONArray arr = (JSONArray)json;
+               String[] ret = new String[arr.length()];
+               for (int i=0; i<ret.length; i++){
+                  ret[i] = arr.optString(i,"unknown");
+               }
+               return ret;
+            }
+            public String[] missing(){ return new String[]{}; }
+         });
+      register(Student.class, new Codec<Student>(){
+            // written and read without an intermediate JSONObject, see StudentJson
+            public Object toJson(Student value){ return StudentJson.json(value); }
+            public Student fromJson(Object json){
+               return (json instanceof JSONObject) ? StudentJson.fromJson((JSONObject)json)
+                  : StudentJson.read(json.toString());
+            }
+            public Student missing(){ return new Student("unknown",-999,new String[]{"unknown"}); }
+         });
+      register(NamePage.class, new Codec<NamePage>(){
+            public Object toJson(NamePage value){ return value.toJson(); }
+            public NamePage fromJson(Object json){ return new NamePage((JSONObject)json); }
+            public NamePage missing(){ return new NamePage(new String[]{}, null); }
+         });
+      Codec<Void> none = new Codec<Void>(){
+            public Object toJson(Void value){ return JSONObject.NULL; }
+            public Void fromJson(Object json){ return null; }
+         };
+      register(void.class, none);
+      register(Void.class, none);
+   }
+
+   public <T> void register(Class<T> type, Codec<? super T> codec){
+      codecs.put(type, codec);
+   }
+
+   /**
+    * @throws IllegalArgumentException if there is no codec for the type
+    */
+   @SuppressWarnings("unchecked")
+   public Codec<Object> get(Class<?> type){
+      Codec<?> ret = codecs.get(type);
+      if (ret == null){
+         throw new IllegalArgumentException("no codec for "+type.getName());
+      }
+      return (Codec<Object>)ret;
+   }
+
+   /**
+    * @return the json for the value, JSONObject.NULL for null
+    */
+   public Object toJson(Class<?> type, Object value){
+      return (value == null) ? JSONObject.NULL : get(type).toJson(value);
+   }
+
+   /**
+    * @return the value, or what the codec gives for missing if json is null
+    */
+   public Object fromJson(Class<?> type, Object json){
+      Codec<Object> c = get(type);
+      return (json == null || json == JSONObject.NULL) ? c.missing() : c.fromJson(json);
+   }
+}
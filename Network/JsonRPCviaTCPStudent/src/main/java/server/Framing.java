@@ -0,0 +1,96 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Purpose: framing of JsonRPC messages on a TCP stream, used by both the
+ * server and the client proxy.
+ * TCP does not keep message boundaries, a read may return part of a message
+ * or several of them. So every message is sent as a 4 byte big-endian length
+ * followed by that many bytes of UTF-8 JSON, and the reader always reads the
+ * whole frame no matter how many segments it arrives in.
+ * Read buffers come from a pool with one free list per power of two size,
+ * so a connection reading many messages does not allocate a new array each time.
+ * Only buffers up to maxPooled bytes are kept, a larger frame gets an array
+ * of its own that the garbage collector takes back after the read.
+ */
+public class Framing {
+
+   public static final int maxFrame = 64 * 1024 * 1024;
+   private static final int minBufSize = 1024;
+   private static final int maxPooled = 1024 * 1024;
+   private static final int buffersPerSize = 16;
+   // pools[i] holds buffers of minBufSize << i bytes
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   private static final ConcurrentLinkedQueue<byte[]>[] pools =
+      new ConcurrentLinkedQueue[Integer.numberOfTrailingZeros(maxPooled / minBufSize) + 1];
+   static {
+      for (int i=0; i<pools.length; i++){
+         pools[i] = new ConcurrentLinkedQueue<byte[]>();
+      }
+   }
+
+   /**
+    * Writes one message as a frame and flushes it.
+    */
+   public static void writeFrame(OutputStream out, String message) throws IOException {
+      byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > maxFrame) {
+         throw new IOException("message of "+bytes.length+" bytes is too large to send");
+      }
+      int n = bytes.length;
+      out.write(new byte[]{(byte)(n >>> 24), (byte)(n >>> 16), (byte)(n >>> 8), (byte)n});
+      out.write(bytes, 0, n);
+      out.flush();
+   }
+
+   /**
+    * Reads one whole frame.
+    * @return the message, or null if the other side closed the connection
+    */
+   public static String readFrame(DataInputStream in) throws IOException {
+      int n;
+      try {
+         n = in.readInt();
+      } catch (EOFException ex) {
+         return null;
+      }
+      if (n < 0 || n > maxFrame) {
+         throw new IOException("invalid frame length "+n);
+      }
+      byte[] buf = borrow(n);
+      try {
+         in.readFully(buf, 0, n);
+         return new String(buf, 0, n, StandardCharsets.UTF_8);
+      } finally {
+         release(buf);
+      }
+   }
+
+   private static int sizeClass(int n){
+      int size = Math.max(minBufSize, Integer.highestOneBit(Math.max(1, n - 1)) << 1);
+      return Integer.numberOfTrailingZeros(size / minBufSize);
+   }
+
+   static byte[] borrow(int n){
+      if (n > maxPooled) {
+         return new byte[n];
+      }
+      int c = sizeClass(n);
+      byte[] buf = pools[c].poll();
+      return (buf != null) ? buf : new byte[minBufSize << c];
+   }
+
+   static void release(byte[] buf){
+      if (buf.length > maxPooled) {
+         return;
+      }
+      int c = Integer.numberOfTrailingZeros(buf.length / minBufSize);
+      // keep a few per size, the rest is left for the garbage collector
+      if (pools[c].size() < buffersPerSize) {
+         pools[c].offer(buf);
+      }
+   }
+}
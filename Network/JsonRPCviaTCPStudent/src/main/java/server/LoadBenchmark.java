@@ -0,0 +1,109 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Purpose:
+ * Compares ways of loading a students json file: the whole file as one
+ * JSONObject (how the server used to load it), the streaming reader, and
+ * the streaming reader with parsing spread over threads.
+ * Writes a file with the given number of students first if it does not
+ * exist. Prints the load time and the peak heap during the load for each.
+ * For the fairest numbers run each mode in its own JVM.
+ *
+ * usage: LoadBenchmark file count [tree|stream|parallel|all]
+ */
+public class LoadBenchmark extends Object {
+
+   public static void main(String args[]) throws Exception {
+      File file = new File((args.length > 0) ? args[0] : "students-bench.json");
+      int count = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+      String mode = (args.length > 2) ? args[2] : "all";
+      if (!file.exists()) {
+         generate(file, count);
+      }
+      System.out.printf("%s: %d MB%n", file, file.length()/(1024*1024));
+      if (mode.equals("tree") || mode.equals("all")) {
+         measure("tree", file);
+      }
+      if (mode.equals("stream") || mode.equals("all")) {
+         measure("stream", file);
+      }
+      if (mode.equals("parallel") || mode.equals("all")) {
+         measure("parallel", file);
+      }
+   }
+
+   private static void generate(File file, int count) throws IOException {
+      String[] courses = {"Ser321","Ser423","Cse494","Ser598","Ser315","Cse310"};
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(
+              new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+         out.write("{");
+         for (int i = 0; i < count; i++) {
+            Student s = new Student("Student"+i, i, new String[]{
+                  courses[i % courses.length], courses[(i / 7) % courses.length]});
+            out.write((i == 0) ? "\n" : ",\n");
+            out.write(JSONObject.quote(s.name));
+            out.write(": ");
+            out.write(s.toJsonString());
+         }
+         out.write("\n}\n");
+      }
+   }
+
+   private static void measure(String mode, File file) throws IOException {
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         pool.resetPeakUsage();
+      }
+      long start = System.nanoTime();
+      Map<String,Student> students = new HashMap<String,Student>();
+      if (mode.equals("tree")) {
+         try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            JSONObject studentMap = new JSONObject(new JSONTokener(is));
+            Iterator<String> it = studentMap.keys();
+            while (it.hasNext()) {
+               Student stud = new Student(studentMap.getJSONObject(it.next()));
+               students.put(stud.name, stud);
+            }
+         }
+      } else {
+         // at least two threads so the parallel path is used even on one core
+         int threads = mode.equals("parallel") ? Math.max(2, Runtime.getRuntime().availableProcessors()) : 1;
+         try (Reader in = StudentJsonReader.open(file)) {
+            StudentJsonReader.read(in, s -> students.put(s.name, s), threads);
+         }
+      }
+      long ms = (System.nanoTime() - start) / 1000000;
+      long peak = heapPeak();
+      System.gc();
+      long retained = heapUsed();
+      System.out.printf("%-8s %8d students %6d ms  peak heap %5d MB  retained %5d MB%n",
+                        mode, students.size(), ms, peak/(1024*1024), retained/(1024*1024));
+   }
+
+   // sum of the peaks of all heap pools, the pools may peak at different times so it is an upper bound
+   private static long heapPeak() {
+      long ret = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) {
+            ret += pool.getPeakUsage().getUsed();
+         }
+      }
+      return ret;
+   }
+
+   private static long heapUsed() {
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+   }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: one page of student names, in name order, and the token to get
+ * the page after it (null after the last page). The token stands for the
+ * last name of the page, so the next page starts after that name whatever
+ * was added or removed in between: no name that stays is skipped or
+ * returned twice.
+ */
+public class NamePage {
+
+   public String[] names;
+   public String next;
+
+   public NamePage(String[] names, String next){
+      this.names = names;
+      this.next = next;
+   }
+
+   public NamePage(JSONObject jsonObj){
+      JSONArray ja = jsonObj.getJSONArray("names");
+      names = new String[ja.length()];
+      for (int i=0; i<names.length; i++){
+         names[i] = ja.getString(i);
+      }
+      next = jsonObj.isNull("next") ? null : jsonObj.getString("next");
+   }
+
+   public JSONObject toJson(){
+      JSONObject jo = new JSONObject();
+      jo.put("names",new JSONArray(names));
+      jo.put("next",(next == null) ? JSONObject.NULL : next);
+      return jo;
+   }
+
+   /**
+    * The token for the page that starts after this name. Clients should not
+    * look into it.
+    */
+   public static String token(String lastName){
+      return Base64.getUrlEncoder().withoutPadding()
+         .encodeToString(lastName.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * @return the name the page of this token starts after, null for the first page
+    * @throws IllegalArgumentException if the token was not made by token(String)
+    */
+   public static String after(String token){
+      if (token == null || token.isEmpty()){
+         return null;
+      }
+      try{
+         return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+      }catch(IllegalArgumentException ex){
+         throw new IllegalArgumentException("not a page token: "+token);
+      }
+   }
+}
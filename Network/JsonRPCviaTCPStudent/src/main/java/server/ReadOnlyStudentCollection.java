@@ -0,0 +1,56 @@
+package server;
+
+/**
+ * Purpose: what clients of a replica server see of its collection. Reads
+ * go to the collection, which only the Replica changes, the changes clients
+ * want to make have to be sent to the primary.
+ */
+class ReadOnlyStudentCollection extends Object implements StudentCollection {
+
+   private StudentCollection students;
+
+   public ReadOnlyStudentCollection(StudentCollection students) {
+      this.students = students;
+   }
+
+   private static UnsupportedOperationException readOnly(String method) {
+      return new UnsupportedOperationException(method+" on a read only replica, call the primary");
+   }
+
+   // writes a snapshot of the replica's own copy, nothing changes
+   public boolean saveToJsonFile() {
+      return students.saveToJsonFile();
+   }
+
+   public boolean resetFromJsonFile() {
+      throw readOnly("resetFromJsonFile");
+   }
+
+   public boolean add(Student stud) {
+      throw readOnly("add");
+   }
+
+   public boolean remove(String aName) {
+      throw readOnly("remove");
+   }
+
+   public Student get(String aName) {
+      return students.get(aName);
+   }
+
+   public String getNameById(int id) {
+      return students.getNameById(id);
+   }
+
+   public String[] getNames() {
+      return students.getNames();
+   }
+
+   public NamePage getNames(String cursor, int limit) {
+      return students.getNames(cursor, limit);
+   }
+
+   public String[] getNamesByCourse(String course) {
+      return students.getNamesByCourse(course);
+   }
+}
@@ -0,0 +1,235 @@
+package server;
+
+import java.net.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Purpose: keeps the collection of a replica server a copy of the
+ * primary's, so reads can be spread over several servers.
+ * The replica asks the primary for its stream of changes (rpc.replicate,
+ * see ChangeFeed), then copies all students a page at a time. Changes that
+ * come in while copying are kept and applied after the copy, those the copy
+ * already has do no harm since every change carries the whole student.
+ * From then on each change is applied in the order of its sequence number
+ * and the replica's version is the primary's version of the last one. A
+ * missing sequence number, a reset of the primary or a lost connection make
+ * the replica copy everything again.
+ */
+class Replica extends Thread {
+
+   private static final boolean debugOn = false;
+   private static final int pageSize = 1000;
+   private static final long retryMs = 1000;
+   private String host;
+   private int port;
+   private StudentCollection students;
+   private ChangeFeed feed;
+   private Socket sock;
+   private DataInputStream in;
+   private OutputStream out;
+   private int nextId = 0;
+   // changes that came in while waiting for a response
+   private List<JSONObject> buffered = new ArrayList<JSONObject>();
+   private long applied = 0;
+
+   /**
+    * @param students the replica's own collection, only changed by this thread
+    * @param feed the replica's feed, its version follows the primary
+    */
+   public Replica(String host, int port, StudentCollection students, ChangeFeed feed) {
+      super("replica-of-"+host+":"+port);
+      this.host = host;
+      this.port = port;
+      this.students = students;
+      this.feed = feed;
+      feed.follow();
+      feed.reached(0);           // a reader that needs a version waits for the first copy
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   public void run() {
+      while (true) {
+         try {
+            sock = new Socket(host, port);
+            sock.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            out = new BufferedOutputStream(sock.getOutputStream());
+            buffered.clear();
+            do {
+               copy();
+            } while (follow());
+         } catch (Exception e) {
+            System.out.println("Replica lost primary "+host+":"+port+": "+e.getMessage());
+         } finally {
+            try {
+               if (sock != null) sock.close();
+            } catch (IOException e) {
+               // closing anyway
+            }
+         }
+         try {
+            Thread.sleep(retryMs);
+         } catch (InterruptedException e) {
+            return;
+         }
+      }
+   }
+
+   // makes the collection the same as the primary's
+   private void copy() throws IOException {
+      long from = call("rpc.replicate", new JSONArray()).getLong("result");
+      Map<String,Student> primary = new HashMap<String,Student>();
+      String cursor = null;
+      do {
+         JSONArray params = new JSONArray();
+         params.put((cursor == null) ? JSONObject.NULL : cursor);
+         params.put(pageSize);
+         NamePage page = new NamePage(call("getNames", params).getJSONObject("result"));
+         JSONArray gets = new JSONArray();
+         for (String name : page.names) {
+            gets.put(request("get", new JSONArray().put(name)));
+         }
+         if (gets.length() > 0) {
+            JSONArray responses = callBatch(gets);
+            for (int i=0; i<responses.length(); i++) {
+               JSONObject stud = responses.getJSONObject(i).optJSONObject("result");
+               // a student removed since the page was read comes back as unknown
+               if (stud != null && stud.optString("name").equals(page.names[i])) {
+                  primary.put(page.names[i], new Student(stud));
+               }
+            }
+         }
+         cursor = page.next;
+      } while (cursor != null);
+      // changes made while copying keep the version, it only moves once the copy is complete
+      feed.nextIs(-1);
+      Set<String> gone = new HashSet<String>();
+      for (String name : students.getNames()) {
+         if (!primary.containsKey(name)) {
+            gone.add(name);
+         }
+      }
+      for (String name : gone) {
+         students.remove(name);
+      }
+      int changed = 0;
+      for (Student s : primary.values()) {
+         if (!students.get(s.name).toJsonString().equals(s.toJsonString())) {
+            students.add(s);
+            changed++;
+         }
+      }
+      applied = from;
+      feed.reached(from);
+      System.out.println("Replica copied "+primary.size()+" students from "+host+":"+port
+                         +" at version "+from+" ("+changed+" changed, "+gone.size()+" removed)");
+   }
+
+   /**
+    * Applies changes as they come.
+    * @return true if everything has to be copied again
+    */
+   private boolean follow() throws IOException {
+      while (true) {
+         JSONObject rec = buffered.isEmpty() ? nextChange() : buffered.remove(0);
+         long seq = rec.getLong("seq");
+         if (seq <= applied) {
+            continue;                        // the copy has it
+         }
+         String op = rec.getString("op");
+         if (seq != applied+1 || op.equals("all")) {
+            System.out.println("Replica at version "+applied+" got "+op+" "+seq+", copying again");
+            buffered.clear();
+            return true;
+         }
+         feed.nextIs(seq);
+         if (op.equals("add")) {
+            students.add(new Student(rec.getJSONObject("student")));
+         } else if (op.equals("remove")) {
+            students.remove(rec.getString("name"));
+         }
+         feed.nextIs(-1);                    // in case nothing changed
+         feed.reached(seq);
+         applied = seq;
+         debug("applied "+op+" "+seq);
+      }
+   }
+
+   private JSONObject request(String method, JSONArray params) {
+      JSONObject theCall = new JSONObject();
+      theCall.put("jsonrpc","2.0");
+      theCall.put("id",++nextId);
+      theCall.put("method",method);
+      theCall.put("params",params);
+      return theCall;
+   }
+
+   // sends the call and reads frames up to its response, keeping the changes on the way
+   private JSONObject call(String method, JSONArray params) throws IOException {
+      JSONObject theCall = request(method, params);
+      Framing.writeFrame(out, theCall.toString());
+      while (true) {
+         String frame = Framing.readFrame(in);
+         if (frame == null) {
+            throw new EOFException("primary closed the connection");
+         }
+         JSONObject msg = new JSONObject(frame);
+         if (keep(msg)) {
+            continue;
+         }
+         if (msg.optInt("id",-1) == theCall.getInt("id")) {
+            if (msg.has("error")) {
+               throw new IOException(method+" failed: "+msg.getJSONObject("error").optString("message"));
+            }
+            return msg;
+         }
+      }
+   }
+
+   private JSONArray callBatch(JSONArray calls) throws IOException {
+      Framing.writeFrame(out, calls.toString());
+      while (true) {
+         String frame = Framing.readFrame(in);
+         if (frame == null) {
+            throw new EOFException("primary closed the connection");
+         }
+         if (frame.startsWith("[")) {
+            return new JSONArray(frame);
+         }
+         keep(new JSONObject(frame));
+      }
+   }
+
+   private boolean keep(JSONObject msg) {
+      if (msg.optString("method").equals("replicate")) {
+         buffered.add(msg.getJSONObject("params"));
+         return true;
+      }
+      return false;
+   }
+
+   private JSONObject nextChange() throws IOException {
+      while (true) {
+         String frame = Framing.readFrame(in);
+         if (frame == null) {
+            throw new EOFException("primary closed the connection");
+         }
+         JSONObject msg = new JSONObject(frame);
+         if (msg.optString("method").equals("replicate")) {
+            return msg.getJSONObject("params");
+         }
+      }
+   }
+}
@@ -16,4 +16,11 @@ public interface StudentCollection {
    public Student get(String aName);
    public String getNameById(int id);
    public String[] getNames();
+   /**
+    * Names in order, a page at a time.
+    * @param cursor null or empty for the first page, else the next token of the page before
+    * @param limit the most names on the page
+    */
+   public NamePage getNames(String cursor, int limit);
+   public String[] getNamesByCourse(String course);
 }
@@ -1,19 +1,13 @@
 package server;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.PrintWriter;
-import java.util.Vector;
-import java.util.Enumeration;
-
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
-import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 /**
  * Purpose: This class is part of an example developed to demonstrate distributed
@@ -26,13 +20,56 @@ import java.io.IOException;
  **/
 class StudentCollectionImpl extends Object implements StudentCollection{
 
-   public Hashtable<String,Student> students;
+   // students live in the store, which logs every change and snapshots to the json file
+   private StudentStore students;
+   // indexes kept next to students so lookups by id or course need no scan
+   private Map<Integer,Student> byId = new ConcurrentHashMap<Integer,Student>();
+   private Map<String,Set<String>> byCourse = new ConcurrentHashMap<String,Set<String>>();
+   // names in order, so pages of names can start after any name
+   private NavigableSet<String> sortedNames = new ConcurrentSkipListSet<String>();
+   private static final int maxPage = 10000;
    private static final boolean debugOn = false;
    private static final String studentJsonFileName = "students.json";
+   private ChangeFeed feed;
+   // while loading the file single changes are not reported, the whole reset is
+   private volatile boolean loading = false;
 
    public StudentCollectionImpl() {
-      debug("creating a new student collection");
-      students = new Hashtable<String,Student>();
+      this(new ChangeFeed());
+   }
+
+   /**
+    * @param feed is told about every change, for clients that cache
+    */
+   public StudentCollectionImpl(ChangeFeed feed) {
+      this(studentJsonFileName, feed);
+   }
+
+   /**
+    * @param fileName the json file the students are kept in, its log is next to it
+    */
+   public StudentCollectionImpl(String fileName, ChangeFeed feed) {
+      debug("creating a new student collection in "+fileName);
+      this.feed = feed;
+      students = new StudentStore(fileName, new StudentStore.Listener() {
+            public void changed(Student old, Student now) {
+               if (old != null) {
+                  // a replaced student keeps its name, so it stays in sortedNames throughout
+                  unindex(old, now == null);
+               }
+               if (now != null) {
+                  index(now);
+               }
+               if (!loading) {
+                  feed.changed(old, now);
+               }
+            }
+            public void cleared() {
+               byId.clear();
+               byCourse.clear();
+               sortedNames.clear();
+            }
+         });
       try{
          this.resetFromJsonFile();
       }catch(Exception ex){
@@ -46,42 +83,34 @@ class StudentCollectionImpl extends Object implements StudentCollection{
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Every change is already in the log, so this goes back to what is on
+    * disk: the last snapshot plus the log after it.
+    */
    public boolean resetFromJsonFile() {
       boolean ret = true;
       try{
-         students.clear();
-         String fileName = studentJsonFileName;
-         File f = new File(fileName);
-         FileInputStream is = new FileInputStream(f);
-         JSONObject studentMap = new JSONObject(new JSONTokener(is));
-         Iterator<String> it = studentMap.keys();
-         while (it.hasNext()){
-            String mType = it.next();
-            JSONObject studentJson = studentMap.optJSONObject(mType);
-            Student stud = new Student(studentJson);
-            students.put(stud.name, stud);
-            debug("added "+stud.name+" : "+stud.toJsonString()+
-                  "\nstudents.size() is: " + students.size());
-         }
+         loading = true;
+         students.load();
+         debug("students.size() is: " + students.size());
       }catch (Exception ex){
          System.out.println("Exception reading json file: "+ex.getMessage());
          ret = false;
+      }finally{
+         loading = false;
+         feed.changedAll();
       }
       return ret;
    }
 
+   /**
+    * Changes are saved as they happen, this writes a snapshot now so the
+    * json file is up to date and the log starts over.
+    */
    public boolean saveToJsonFile() {
       boolean ret = true;
       try {
-         String jsonStr;
-         JSONObject obj = new JSONObject();
-         for (Enumeration<String> e = students.keys(); e.hasMoreElements();){
-            Student aStud = students.get((String)e.nextElement());
-            obj.put(aStud.name,aStud.toJson());
-         }
-         PrintWriter out = new PrintWriter(studentJsonFileName);
-         out.println(obj.toString(2));
-         out.close();
+         students.compact();
       }catch(Exception ex){
          ret = false;
       }
@@ -92,7 +121,7 @@ class StudentCollectionImpl extends Object implements StudentCollection{
       boolean ret = true;
       debug("adding student named: "+((aStud==null)?"unknown":aStud.name));
       try{
-         students.put(aStud.name,aStud);
+         students.put(aStud);
       }catch(Exception ex){
          ret = false;
       }
@@ -101,27 +130,76 @@ class StudentCollectionImpl extends Object implements StudentCollection{
 
    public boolean remove(String aName) {
       debug("removing student named: "+aName);
-      return ((students.remove(aName)==null)?false:true);
+      Student old = null;
+      try{
+         old = students.remove(aName);
+      }catch(Exception ex){
+         debug("error removing "+aName+": "+ex.getMessage());
+      }
+      return ((old==null)?false:true);
+   }
+
+   // called by the store one change at a time in log order, so indexes follow the same order
+   private void index(Student aStud) {
+      byId.put(aStud.studentid, aStud);
+      sortedNames.add(aStud.name);
+      for (String course : aStud.takes) {
+         byCourse.computeIfAbsent(course, k -> ConcurrentHashMap.newKeySet()).add(aStud.name);
+      }
+   }
+
+   private void unindex(Student old, boolean gone) {
+      // only if the id still points to this student, ids are expected to be unique
+      byId.remove(old.studentid, old);
+      if (gone) {
+         sortedNames.remove(old.name);
+      }
+      for (String course : old.takes) {
+         Set<String> names = byCourse.get(course);
+         if (names != null) {
+            names.remove(old.name);
+            if (names.isEmpty()) {
+               byCourse.remove(course, names);
+            }
+         }
+      }
    }
 
    public String[] getNames() {
       String[] ret = {};
       debug("getting "+students.size()+" student names.");
       if(students.size()>0){
-         ret = (String[])(students.keySet()).toArray(new String[0]);
+         ret = students.names();
       }
       return ret;
    }
    
+   public NamePage getNames(String cursor, int limit) {
+      int n = (limit <= 0 || limit > maxPage) ? maxPage : limit;
+      String after = NamePage.after(cursor);
+      Iterator<String> it = ((after == null) ? sortedNames : sortedNames.tailSet(after, false)).iterator();
+      List<String> page = new ArrayList<String>(Math.min(n, 1024));
+      while (page.size() < n && it.hasNext()) {
+         page.add(it.next());
+      }
+      String next = (page.size() == n && it.hasNext()) ? NamePage.token(page.get(n-1)) : null;
+      return new NamePage(page.toArray(new String[0]), next);
+   }
+
    public String getNameById(int id) {
       String ret = "unknown";
-      String[] keys = (String[])(students.keySet()).toArray(new String[0]);
-      for (int i=0; i< keys.length; i++){
-         Student aStud = students.get(keys[i]);
-         if (aStud.studentid==id){
-            ret = aStud.name;
-            break;
-         }
+      Student aStud = byId.get(id);
+      if (aStud != null) {
+         ret = aStud.name;
+      }
+      return ret;
+   }
+
+   public String[] getNamesByCourse(String course) {
+      String[] ret = {};
+      Set<String> names = byCourse.get(course);
+      if (names != null) {
+         ret = names.toArray(new String[0]);
       }
       return ret;
    }
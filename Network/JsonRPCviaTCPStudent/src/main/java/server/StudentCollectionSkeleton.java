@@ -3,8 +3,14 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.function.Consumer;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONTokener;
 
 /**
  * A class for client-server connections with a threaded server.
@@ -19,10 +25,72 @@ import org.json.JSONArray;
 public class StudentCollectionSkeleton extends Object {
 
    private static final boolean debugOn = false;
+   // how long a call with a minVersion waits for a replica to catch up
+   private static final long catchUpMs = Long.getLong("replica.catchUpMs", 2000);
    StudentCollection studLib;
+   private Codecs codecs;
+   private ChangeFeed feed;                // may be null, then responses carry no version
+   private Consumer<String> push;          // sends notifications to this skeleton's client
+   // "name/number of params" and plain "name" -> the method, built once from the interface
+   private Map<String,Dispatch> methods = new HashMap<String,Dispatch>();
+
+   private static class Dispatch {
+      final MethodHandle handle;      // (Object[])Object, bound to studLib
+      final Class<?>[] paramTypes;
+      final Class<?> returnType;
+      Dispatch(MethodHandle handle, Method m){
+         this.handle = handle;
+         this.paramTypes = m.getParameterTypes();
+         this.returnType = m.getReturnType();
+      }
+   }
 
    public StudentCollectionSkeleton (StudentCollection studLib){
+      this(studLib, new Codecs());
+   }
+
+   StudentCollectionSkeleton (StudentCollection studLib, ChangeFeed feed, Consumer<String> push){
+      this(studLib, new Codecs());
+      this.feed = feed;
+      this.push = push;
+   }
+
+   /**
+    * A skeleton for one more connection to the same collection: the
+    * dispatch table of shared is used as it is, it never changes once built.
+    */
+   StudentCollectionSkeleton (StudentCollectionSkeleton shared, ChangeFeed feed, Consumer<String> push){
+      this.studLib = shared.studLib;
+      this.codecs = shared.codecs;
+      this.methods = shared.methods;
+      this.feed = feed;
+      this.push = push;
+   }
+
+   /**
+    * Every method of the StudentCollection interface can be called, by its
+    * name and number of params. A new method only needs codecs for its types.
+    */
+   public StudentCollectionSkeleton (StudentCollection studLib, Codecs codecs){
       this.studLib = studLib;
+      this.codecs = codecs;
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      for (Method m : StudentCollection.class.getMethods()){
+         codecs.get(m.getReturnType());
+         for (Class<?> p : m.getParameterTypes()){
+            codecs.get(p);                    // fail now, not on the first call
+         }
+         try{
+            MethodHandle mh = lookup.unreflect(m).bindTo(studLib)
+               .asSpreader(Object[].class, m.getParameterCount())
+               .asType(MethodType.methodType(Object.class, Object[].class));
+            Dispatch d = new Dispatch(mh, m);
+            methods.put(m.getName()+"/"+m.getParameterCount(), d);
+            methods.put(m.getName(), d);
+         }catch(IllegalAccessException ex){
+            throw new IllegalArgumentException("cannot call "+m.getName(), ex);
+         }
+      }
    }
 
    private void debug(String message) {
@@ -30,57 +98,134 @@ public class StudentCollectionSkeleton extends Object {
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Handles a single JsonRPC call or a JsonRPC 2.0 batch (an array of
+    * calls). The response to a batch is an array with one response per
+    * call in the same order, a call that fails gets an error object and
+    * does not stop the others. The id of a call comes back as it was sent,
+    * number or string. A call without id is a notification and gets no
+    * response.
+    * @return the response, or null if there is nothing to send back
+    */
    public String callMethod(String request){
+      Object parsed;
+      try{
+         parsed = new JSONTokener(request).nextValue();
+      }catch(Exception ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+         return error(null, -32700, "Parse error").toString();
+      }
+      if (parsed instanceof JSONArray){
+         JSONArray calls = (JSONArray)parsed;
+         if (calls.length() == 0){
+            return error(null, -32600, "Invalid Request: empty batch").toString();
+         }
+         JSONArray results = new JSONArray();
+         for (int i=0; i<calls.length(); i++){
+            JSONObject theCall = calls.optJSONObject(i);
+            if (theCall == null){
+               results.put(error(null, -32600, "Invalid Request"));
+            }else if (theCall.has("id")){
+               results.put(callMethod(theCall));
+            }else{
+               callMethod(theCall);
+            }
+         }
+         // a batch of notifications only gets nothing back, not an empty array
+         return (results.length() == 0) ? null : results.toString();
+      }
+      if (!(parsed instanceof JSONObject)){
+         // valid JSON, but neither a call nor a batch
+         return error(null, -32600, "Invalid Request").toString();
+      }
+      JSONObject theCall = (JSONObject)parsed;
+      JSONObject result = callMethod(theCall);
+      return theCall.has("id") ? result.toString() : null;
+   }
+
+   private JSONObject error(Object id, int code, String message){
+      JSONObject err = new JSONObject();
+      err.put("code",code);
+      err.put("message",message);
+      JSONObject result = new JSONObject();
+      result.put("id",(id == null) ? JSONObject.NULL : id);
+      result.put("jsonrpc","2.0");
+      result.put("error",err);
+      return result;
+   }
+
+   private JSONObject callMethod(JSONObject theCall){
       JSONObject result = new JSONObject();
       try{
-         JSONObject theCall = new JSONObject(request);
          debug("Request is: "+theCall.toString());
          String method = theCall.getString("method");
-         int id = theCall.getInt("id");
-         JSONArray params = null;
-         if(!theCall.isNull("params")){
-            params = theCall.getJSONArray("params");
+         Object id = theCall.opt("id");       // null for a notification
+         JSONArray params = theCall.optJSONArray("params");
+         int n = (params == null) ? 0 : params.length();
+         if (method.equals("rpc.subscribe") && feed != null && push != null){
+            // from now on the client is told about changes, result is the version it is up to date with
+            result.put("id",id);
+            result.put("jsonrpc","2.0");
+            result.put("result",feed.subscribe(push));
+            return result;
+         }
+         if (method.equals("rpc.replicate") && feed != null && push != null){
+            // from now on every change is sent in full, result is the version the stream continues from
+            result.put("id",id);
+            result.put("jsonrpc","2.0");
+            result.put("result",feed.subscribeReplica(push));
+            return result;
+         }
+         long minVersion = theCall.optLong("minVersion", 0);
+         if (feed != null && minVersion > feed.version()
+             && !feed.awaitVersion(minVersion, catchUpMs)){
+            // read your writes: the caller wrote minVersion, this server does not have it yet
+            return error(id, -32000, "Server error: at version "+feed.version()
+                         +", behind "+minVersion);
+         }
+         Dispatch d = methods.get(method+"/"+n);
+         if (d == null){
+            debug("Unable to match method: "+method+". Returning an error.");
+            return error(id, methods.containsKey(method) ? -32602 : -32601,
+                         methods.containsKey(method)
+                         ? "Invalid params: "+method+" does not take "+n
+                         : "Method not found: "+method);
+         }
+         Object[] args = new Object[n];
+         try{
+            for (int i=0; i<n; i++){
+               // a null argument stays null, the codec's missing value is for results
+               args[i] = (params.isNull(i) && !d.paramTypes[i].isPrimitive())
+                  ? null : codecs.fromJson(d.paramTypes[i], params.get(i));
+            }
+         }catch(RuntimeException ex){
+            return error(id, -32602, "Invalid params: "+ex.getMessage());
+         }
+         long before = 0;
+         if (feed != null){
+            before = feed.version();
+            feed.beginCall();
+         }
+         Object ret;
+         try{
+            ret = (Object)d.handle.invokeExact(args);
+         }catch(UnsupportedOperationException ex){
+            // a write sent to a replica
+            return error(id, -32000, "Server error: "+ex.getMessage());
+         }catch(IllegalArgumentException ex){
+            // the method did not accept an argument, e.g. a cursor that is not a page token
+            return error(id, -32602, "Invalid params: "+ex.getMessage());
          }
          result.put("id",id);
          result.put("jsonrpc","2.0");
-         if(method.equals("add")){
-            JSONObject studJson = params.getJSONObject(0);
-            Student studToAdd = new Student(studJson);
-            debug("adding stud: "+studToAdd.toJsonString());
-            studLib.add(studToAdd);
-            result.put("result",true);
-         }else if(method.equals("remove")){
-            String studName = params.getString(0);
-            debug("removing student named "+studName);
-            studLib.remove(studName);
-            result.put("result",true);
-         }else if(method.equals("getNameById")){
-            int studNum = params.getInt(0);
-            debug("getNameById for student number "+studNum);
-            String name = studLib.getNameById(studNum);
-            result.put("result",name);
-         }else if(method.equals("get")){
-            String studName = params.getString(0);
-            Student stud = studLib.get(studName);
-            JSONObject studJson = stud.toJson();
-            debug("get request found: "+studJson.toString());
-            result.put("result",studJson);
-         }else if(method.equals("getNames")){
-            String[] names = studLib.getNames();
-            JSONArray resArr = new JSONArray();
-            for (int i=0; i<names.length; i++){
-               resArr.put(names[i]);
-            }
-            debug("getNames request found: "+resArr.toString());
-            result.put("result",resArr);
-         }else{
-            debug("Unable to match method: "+method+". Returning 0.");
-            result.put("result",0.0);
+         result.put("result",codecs.toJson(d.returnType, ret));
+         if (feed != null){
+            result.put("version",feed.endCall(before));
          }
-      }catch(Exception ex){
+      }catch(Throwable ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
+         result = error(theCall.opt("id"), -32603, "Internal error: "+ex.getMessage());
       }
-      return result.toString();
+      return result;
    }
 }
-
@@ -3,10 +3,37 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * A class for TCP client-server connections with a threaded server that
  * implements JsonRPC method calls for a collection of Students.
+ * A connection stays open for as many calls as the client likes, each
+ * request and response is a length-prefixed frame (see Framing). Each call is run by a worker so a client can have several
+ * calls in flight on one connection, responses carry the id of their request
+ * and may come back in a different order.
+ * Given the host:port of a primary server it runs as a replica: it keeps
+ * a copy of the primary's students (see Replica) and only answers reads.
+ * Connections and calls are served by thread pools of bounded size (or
+ * virtual threads where the JVM has them), set with system properties:
+ *   server.executor        pool (default) or virtual
+ *   server.maxConnections  connections served at once (default 256), more
+ *                          wait in the listen backlog until one closes
+ *   server.backlog         length of the listen backlog (default 1024)
+ *   server.workers         threads running calls (default 4 per core), when
+ *                          all are busy and workers*4 calls wait, a
+ *                          connection runs its call itself and stops
+ *                          reading until it is done
+ *   server.logCalls        print each request and response (default true),
+ *                          printed by a log thread, never waited for
  *
  * Ser321 Foundations of Distributed Software Systems
  * @author Tim Lindquist Tim.Lindquist@asu.edu
@@ -14,66 +41,209 @@ import java.util.*;
  * @version April 2020
  */
 public class StudentCollectionTCPJsonRPCServer extends Thread {
+   private static ExecutorService workers = Executors.newCachedThreadPool();
+   private static AsyncLog log = null;   // null: calls are not logged
+   // notifications waiting for a slow subscriber, when full it is disconnected
+   private static final int pushQueueSize = 10000;
    private Socket conn;
    private int id;
    private StudentCollectionSkeleton skeleton;
+   private ChangeFeed feed;
+   private OutputStream outSock;
+   private BlockingQueue<String> pushes;
+   private Consumer<String> pushTo = this::push;
 
    public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
                                              StudentCollection stdCol) {
+      this(sock, id, stdCol, null);
+   }
+
+   public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
+                                             StudentCollection stdCol, ChangeFeed feed) {
+      this(sock, id, new StudentCollectionSkeleton(stdCol), feed);
+   }
+
+   /**
+    * @param shared a skeleton of the collection, its dispatch table is used
+    *        for this connection too instead of being built again
+    */
+   StudentCollectionTCPJsonRPCServer (Socket sock, int id,
+                                      StudentCollectionSkeleton shared, ChangeFeed feed) {
       this.conn = sock;
       this.id = id;
-      skeleton = new StudentCollectionSkeleton(stdCol);
+      this.feed = feed;
+      skeleton = new StudentCollectionSkeleton(shared, feed, pushTo);
+   }
+
+   /**
+    * Queues a notification for this client, never blocks: the feed calls
+    * it while the store makes a change. One thread per subscribed
+    * connection writes them in order.
+    */
+   private void push(String note) {
+      synchronized (this) {
+         if (pushes == null) {
+            pushes = new ArrayBlockingQueue<String>(pushQueueSize);
+            Thread writer = new Thread(this::writePushes, "push-writer-"+id);
+            writer.setDaemon(true);
+            writer.start();
+         }
+      }
+      if (!pushes.offer(note)) {
+         // missing a notification would leave stale entries in the client's cache,
+         // so drop the connection, the client clears its cache when it subscribes again
+         System.out.println("Client "+id+" does not keep up with notifications, disconnecting");
+         feed.unsubscribe(pushTo);
+         try {
+            conn.close();
+         } catch (IOException e) {
+            // closing anyway
+         }
+      }
+   }
+
+   private void writePushes() {
+      try {
+         while (!conn.isClosed()) {
+            String note = pushes.take();
+            synchronized (outSock) {
+               Framing.writeFrame(outSock, note);
+            }
+         }
+      } catch (Exception e) {
+         // connection is gone
+      }
    }
 
    public void run() {
       // setup connection
       try {
-         OutputStream outSock = conn.getOutputStream();
-         InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
+         DataInputStream inSock = new DataInputStream(
+            new BufferedInputStream(conn.getInputStream()));
+         outSock = new BufferedOutputStream(conn.getOutputStream());
 
-            // prep and send response
-            String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+         // receive requests until the client closes the connection
+         String request;
+         while ((request = Framing.readFrame(inSock)) != null) {
+            if (log != null) {
+               log.log("request is: "+request);
+            }
+            final String theRequest = request;
+            workers.execute(() -> {
+               // prep and send response
+               String response = skeleton.callMethod(theRequest);
+               if (response == null) {
+                  return;   // notifications only, nothing to answer
+               }
+               try {
+                  synchronized (outSock) {
+                     Framing.writeFrame(outSock, response);
+                  }
+                  if (log != null) {
+                     log.log("response is: "+response);
+                  }
+               } catch (IOException e) {
+                  System.out.println("Could not send response to client "+id);
+               }
+            });
          }
-         inSock.close();
-         outSock.close();
-         conn.close();
       } catch (IOException e) {
          System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+      } finally {
+         if (feed != null) {
+            feed.unsubscribe(pushTo);
+         }
+         // also after a bad frame or a reset, or the socket stays open
+         try {
+            conn.close();
+         } catch (IOException e) {
+            // closing anyway
+         }
       }
    }
+
+   /**
+    * Virtual threads if asked for and the JVM has them (Java 21), otherwise
+    * a pool of at most threads platform threads.
+    * @param queue tasks that may wait for a thread of the pool, 0 for none;
+    *        a task that finds neither runs on the thread that submits it
+    */
+   static ExecutorService executor(String kind, int threads, int queue, String name) {
+      if (kind.equals("virtual")) {
+         try {
+            return (ExecutorService)Executors.class
+               .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         } catch (ReflectiveOperationException e) {
+            System.out.println("No virtual threads in Java "+System.getProperty("java.version")
+                               +", using a pool of "+threads+" threads for "+name);
+         }
+      }
+      ThreadPoolExecutor ret = new ThreadPoolExecutor(
+         threads, threads, 60, TimeUnit.SECONDS,
+         (queue > 0) ? new ArrayBlockingQueue<Runnable>(queue) : new SynchronousQueue<Runnable>(),
+         r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+         },
+         new ThreadPoolExecutor.CallerRunsPolicy());
+      ret.allowCoreThreadTimeOut(true);
+      return ret;
+   }
     
    public static void main (String args[]) {
       Socket sock;
-      StudentCollection studCol = new StudentCollectionImpl();
       int id=0;
       try {
-         if (args.length != 1) {
-            System.out.println("Expected Arguments: <port(int)>");
+         if (args.length < 1 || args.length > 3) {
+            System.out.println("Expected Arguments: <port(int)> [students json file] [primary host:port]");
             System.exit(0);
          }
+         // several servers in one directory (e.g. shards, replicas) each need their own file
+         String fileName = (args.length > 1) ? args[1] : "students.json";
+         ChangeFeed feed = new ChangeFeed();
+         StudentCollection studCol = new StudentCollectionImpl(fileName, feed);
+         if (args.length > 2) {
+            // a replica: follows the primary and only serves reads
+            String primary = args[2];
+            int colon = primary.lastIndexOf(':');
+            new Replica(primary.substring(0, colon), Integer.parseInt(primary.substring(colon+1)),
+                        studCol, feed).start();
+            studCol = new ReadOnlyStudentCollection(studCol);
+         }
+         String kind = System.getProperty("server.executor", "pool");
+         int maxConnections = Integer.getInteger("server.maxConnections", 256);
+         int threads = Integer.getInteger("server.workers",
+                                          4*Runtime.getRuntime().availableProcessors());
+         workers = executor(kind, threads, 4*threads, "worker");
+         // the semaphore keeps connections within the pool, the queue only covers a thread just finishing
+         ExecutorService connections = executor(kind, maxConnections, maxConnections, "connection");
+         if (Boolean.parseBoolean(System.getProperty("server.logCalls", "true"))) {
+            log = new AsyncLog(10000);
+         }
+         Semaphore open = new Semaphore(maxConnections);
+         // the dispatch table is built once, every connection uses it
+         StudentCollectionSkeleton shared = new StudentCollectionSkeleton(studCol);
          int portNo = Integer.parseInt(args[0]);
          if (portNo <= 1024) portNo=8888;
-         ServerSocket serv = new ServerSocket(portNo);
-         // accept client requests. For each request create a new thread to handle
-         while (true) { 
-            System.out.println("Student server waiting for connects on port "
-                               +portNo);
+         ServerSocket serv = new ServerSocket(portNo, Integer.getInteger("server.backlog", 1024));
+         System.out.println("Student server waiting for connects on port "+portNo
+                            +", at most "+maxConnections+" at a time");
+         // accept client requests. Each connection is served by a thread of the pool
+         while (true) {
+            // at the limit, new connections wait in the backlog until one closes
+            open.acquire();
             sock = serv.accept();
             System.out.println("Student server connected to client: "+id);
             StudentCollectionTCPJsonRPCServer myServerThread =
-               new StudentCollectionTCPJsonRPCServer(sock,id++,studCol);
-            myServerThread.start();
+               new StudentCollectionTCPJsonRPCServer(sock,id++,shared,feed);
+            connections.execute(() -> {
+               try {
+                  myServerThread.run();
+               } finally {
+                  open.release();
+               }
+            });
          }
       } catch(Exception e) {e.printStackTrace();}
    }
@@ -0,0 +1,275 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Purpose: reads a students json file ({"name": {student}, ...}) one
+ * student at a time, so loading never holds more than the students
+ * themselves. Parsing the whole file into one JSONObject first keeps every
+ * key, value and hash map node of the file in memory at the same time.
+ *
+ * The sequential reader works on the tokens of a JSONTokener and builds
+ * each Student directly from them. The parallel reader only scans the text
+ * for where each student starts and ends, and leaves the parsing of chunks
+ * of students to a pool of threads. Either way students are handed to the
+ * consumer in file order, so a name that is in the file twice ends up with
+ * the later value, just like with the JSONObject.
+ */
+class StudentJsonReader extends Object {
+
+   private static final int chunkSize = 2000;   // students per parallel task
+
+   /**
+    * Reads all students on the calling thread.
+    */
+   public static void read(Reader in, Consumer<Student> sink) throws IOException {
+      try{
+         JSONTokener t = new JSONTokener(in);
+         if (t.nextClean() != '{') {
+            throw t.syntaxError("a students file must start with '{'");
+         }
+         char c = t.nextClean();
+         if (c == '}') {
+            return;
+         }
+         t.back();
+         while (true) {
+            t.nextValue();                     // the name key, the student carries its own name
+            if (t.nextClean() != ':') {
+               throw t.syntaxError("expected ':' after a student name");
+            }
+            sink.accept(readStudent(t));
+            c = t.nextClean();
+            if (c == '}') {
+               return;
+            }
+            if (c != ',') {
+               throw t.syntaxError("expected ',' or '}' after a student");
+            }
+         }
+      }catch(JSONException ex){
+         throw new IOException(ex.getMessage(), ex);
+      }
+   }
+
+   /**
+    * Reads all students with the given number of parsing threads. With one
+    * thread this is the same as read(in, sink).
+    */
+   public static void read(Reader in, Consumer<Student> sink, int threads) throws IOException {
+      if (threads <= 1) {
+         read(in, sink);
+         return;
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      // at most two chunks per thread waiting, so memory stays bounded
+      List<Future<List<Student>>> inFlight = new ArrayList<Future<List<Student>>>();
+      try{
+         Splitter split = new Splitter(in);
+         List<String> chunk = new ArrayList<String>(chunkSize);
+         String text;
+         while ((text = split.next()) != null) {
+            chunk.add(text);
+            if (chunk.size() == chunkSize) {
+               final List<String> work = chunk;
+               inFlight.add(pool.submit(() -> parse(work)));
+               chunk = new ArrayList<String>(chunkSize);
+               if (inFlight.size() >= 2*threads) {
+                  drain(inFlight.remove(0), sink);
+               }
+            }
+         }
+         if (!chunk.isEmpty()) {
+            final List<String> work = chunk;
+            inFlight.add(pool.submit(() -> parse(work)));
+         }
+         for (Future<List<Student>> f : inFlight) {
+            drain(f, sink);
+         }
+      }finally{
+         pool.shutdownNow();
+      }
+   }
+
+   private static List<Student> parse(List<String> texts) {
+      List<Student> ret = new ArrayList<Student>(texts.size());
+      for (String text : texts) {
+         ret.add(readStudent(new JSONTokener(text)));
+      }
+      return ret;
+   }
+
+   private static void drain(Future<List<Student>> f, Consumer<Student> sink) throws IOException {
+      try{
+         for (Student s : f.get()) {
+            sink.accept(s);
+         }
+      }catch(InterruptedException ex){
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted loading students");
+      }catch(java.util.concurrent.ExecutionException ex){
+         throw new IOException("error parsing students: "+ex.getCause().getMessage(), ex.getCause());
+      }
+   }
+
+   // {"name":..., "studentid":..., "takes":[...]} in any order, other keys are skipped
+   static Student readStudent(JSONTokener t) {
+      if (t.nextClean() != '{') {
+         throw t.syntaxError("expected a student object");
+      }
+      String name = "unknown";
+      int studentid = 0;
+      Vector<String> takes = new Vector<String>();
+      char c = t.nextClean();
+      if (c != '}') {
+         t.back();
+         while (true) {
+            if (t.nextClean() != '"') {
+               throw t.syntaxError("expected a key");
+            }
+            String key = t.nextString('"');
+            if (t.nextClean() != ':') {
+               throw t.syntaxError("expected ':' after "+key);
+            }
+            if (key.equals("name")) {
+               name = t.nextValue().toString();
+            } else if (key.equals("studentid")) {
+               Object v = t.nextValue();
+               studentid = (v instanceof Number) ? ((Number)v).intValue() : Integer.parseInt(v.toString());
+            } else if (key.equals("takes")) {
+               readCourses(t, takes);
+            } else {
+               t.nextValue();
+            }
+            c = t.nextClean();
+            if (c == '}') {
+               break;
+            }
+            if (c != ',') {
+               throw t.syntaxError("expected ',' or '}' in a student");
+            }
+         }
+      }
+      Student ret = new Student(name, studentid, new String[0]);
+      ret.takes = takes;
+      return ret;
+   }
+
+   private static void readCourses(JSONTokener t, Vector<String> takes) {
+      if (t.nextClean() != '[') {
+         throw t.syntaxError("expected the array of courses");
+      }
+      char c = t.nextClean();
+      if (c == ']') {
+         return;
+      }
+      t.back();
+      while (true) {
+         takes.add(t.nextValue().toString());
+         c = t.nextClean();
+         if (c == ']') {
+            return;
+         }
+         if (c != ',') {
+            throw t.syntaxError("expected ',' or ']' in the courses");
+         }
+      }
+   }
+
+   /**
+    * Cuts the file into the text of one student object after the other,
+    * only looking at braces, brackets and strings.
+    */
+   private static class Splitter {
+      private final Reader in;
+      private final StringBuilder sb = new StringBuilder(256);
+      private boolean started = false;
+
+      Splitter(Reader in) {
+         this.in = in.markSupported() ? in : new BufferedReader(in, 1 << 16);
+      }
+
+      // the text of the next student object, or null after the last one
+      String next() throws IOException {
+         int c;
+         if (!started) {
+            c = skipSpace();
+            if (c != '{') {
+               throw new IOException("a students file must start with '{'");
+            }
+            started = true;
+         }
+         // skip over  "key" :  up to the student object
+         while ((c = skipSpace()) != '{') {
+            if (c == '}' || c == -1) {
+               return null;
+            }
+            if (c == '"') {
+               skipString(null);
+            } else if (c != ',' && c != ':') {
+               throw new IOException("unexpected '"+(char)c+"' between students");
+            }
+         }
+         sb.setLength(0);
+         sb.append('{');
+         int depth = 1;
+         while (depth > 0) {
+            c = in.read();
+            if (c == -1) {
+               throw new IOException("students file ends inside a student");
+            }
+            sb.append((char)c);
+            if (c == '"') {
+               skipString(sb);
+            } else if (c == '{' || c == '[') {
+               depth++;
+            } else if (c == '}' || c == ']') {
+               depth--;
+            }
+         }
+         return sb.toString();
+      }
+
+      private int skipSpace() throws IOException {
+         int c;
+         do {
+            c = in.read();
+         } while (c != -1 && c <= ' ');
+         return c;
+      }
+
+      // after an opening quote, up to and including the closing one
+      private void skipString(StringBuilder to) throws IOException {
+         int c;
+         while ((c = in.read()) != '"') {
+            if (c == -1) {
+               throw new IOException("students file ends inside a string");
+            }
+            if (to != null) to.append((char)c);
+            if (c == '\\') {
+               c = in.read();
+               if (to != null && c != -1) to.append((char)c);
+            }
+         }
+         if (to != null) to.append('"');
+      }
+   }
+
+   /**
+    * Opens the file as UTF-8 with a large buffer.
+    */
+   public static Reader open(File f) throws IOException {
+      return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), 1 << 16);
+   }
+}
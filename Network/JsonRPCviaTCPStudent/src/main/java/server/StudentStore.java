@@ -0,0 +1,407 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: storage engine behind StudentCollectionImpl.
+ * Students are kept in a ConcurrentHashMap, so reads never lock. Every add
+ * and remove is appended to a log file (one JSON line per mutation) before
+ * the call returns. A single log writer thread takes all records that are
+ * waiting, writes them and forces them to disk with one fsync, so many
+ * concurrent writers share the cost of one fsync (group commit).
+ * A change is made in the map, and reported, only once its record is in
+ * the log, in log order. A change whose log write fails is never seen by
+ * readers, caches or replicas.
+ * Now and then the map is written as a snapshot to the students json file
+ * and the log is started over (compaction). On start the snapshot is read
+ * and the log is replayed on top of it.
+ *
+ * A log record only says "this student is now that" or "this student is
+ * gone", so replaying records that are already part of the snapshot does
+ * no harm as long as the log is replayed in order up to its end. That is
+ * why a crash in the middle of a compaction needs no special care: the old
+ * log is kept until the new snapshot is in place.
+ */
+class StudentStore extends Object {
+
+   /**
+    * Told about every change, one at a time in log order, by the thread that
+    * made the change, so indexes kept next to the store change in the same
+    * order as the map.
+    */
+   interface Listener {
+      /** @param old the replaced or removed student or null, now the new one or null */
+      void changed(Student old, Student now);
+      void cleared();
+   }
+
+   private static final boolean debugOn = false;
+   // compact once the log has this many records, checked after every write
+   private static final int compactAfter = Integer.getInteger("store.compactAfter", 10000);
+   // set store.fsync=false to only hand the log to the OS, faster but not crash safe
+   private static final boolean fsync = Boolean.parseBoolean(System.getProperty("store.fsync","true"));
+   // threads parsing the snapshot on start, 1 reads it on the loading thread
+   private static final int loadThreads = Integer.getInteger("store.loadThreads",
+                                                  Runtime.getRuntime().availableProcessors());
+
+   private final Map<String,Student> students = new ConcurrentHashMap<String,Student>();
+   private final File snapshotFile;
+   private final File logFile;
+   private final File oldLogFile;
+   private final Listener listener;
+   private final Object writeLock = new Object();   // held while a record is queued
+   private final Object applyLock = new Object();   // held while a logged change is made
+   private long queued = 0;                         // records queued, guarded by writeLock
+   private long applied = 0;                        // records made or dropped, guarded by applyLock
+   // the last queued record of each student whose change is not made yet
+   private final Map<String,Record> pending = new ConcurrentHashMap<String,Record>();
+   private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+   private final AtomicInteger logRecords = new AtomicInteger();
+   private volatile boolean compacting = false;
+   private volatile FileOutputStream logOut;  // used by the log writer thread, or by compact while it is idle
+
+   private static class Record {
+      final byte[] line;            // null for a barrier that only waits for earlier records
+      final String name;            // the student it changes, null for a barrier
+      final Student student;        // the student after the change, null when removed
+      long seq;                     // place in the log, changes are made in this order
+      final CompletableFuture<Void> done = new CompletableFuture<Void>();
+      Record(String line, String name, Student student){
+         this.line = (line == null) ? null : (line+"\n").getBytes(StandardCharsets.UTF_8);
+         this.name = name;
+         this.student = student;
+      }
+   }
+
+   StudentStore(String snapshotFileName, Listener listener) {
+      this.snapshotFile = new File(snapshotFileName);
+      String base = snapshotFileName.endsWith(".json")
+         ? snapshotFileName.substring(0, snapshotFileName.length()-5) : snapshotFileName;
+      this.logFile = new File(base+".log");
+      this.oldLogFile = new File(base+".log.old");
+      this.listener = listener;
+      Thread writer = new Thread(this::writeLog, "student-log-writer");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   public Student get(String name) {
+      return students.get(name);
+   }
+
+   public int size() {
+      return students.size();
+   }
+
+   public String[] names() {
+      return students.keySet().toArray(new String[0]);
+   }
+
+   /**
+    * Adds or replaces the student, returns once the change is in the log.
+    */
+   public void put(Student aStud) throws IOException {
+      JSONObject rec = new JSONObject();
+      rec.put("op","add");
+      rec.put("student",aStud.toJson());
+      Record r;
+      synchronized(writeLock){
+         r = append(rec.toString(), aStud.name, aStud);
+      }
+      apply(r);
+      compactIfDue();
+   }
+
+   /**
+    * Removes the student, returns once the change is in the log.
+    * @return the removed student, or null if there was none
+    */
+   public Student remove(String name) throws IOException {
+      Record r;
+      synchronized(writeLock){
+         // a change still waiting for the log counts, it comes before ours
+         Record p = pending.get(name);
+         if (((p != null) ? p.student : students.get(name)) == null) {
+            return null;
+         }
+         JSONObject rec = new JSONObject();
+         rec.put("op","remove");
+         rec.put("name",name);
+         r = append(rec.toString(), name, null);
+      }
+      Student old = apply(r);
+      compactIfDue();
+      return old;
+   }
+
+   // caller holds writeLock, so the log has the same order as the calls
+   private Record append(String line, String name, Student student) {
+      Record r = new Record(line, name, student);
+      r.seq = ++queued;
+      if (name != null) {
+         pending.put(name, r);
+      }
+      queue.add(r);
+      return r;
+   }
+
+   /*
+    * Waits until the record is in the log, then makes its change once all
+    * records before it are done. A record whose write failed is dropped.
+    * Returns the student the change replaced or removed.
+    */
+   private Student apply(Record r) throws IOException {
+      Throwable failed = null;
+      try{
+         r.done.join();   // not interruptible, every record must take its turn
+      }catch(CompletionException ex){
+         failed = ex.getCause();
+      }
+      Student old = null;
+      synchronized(applyLock){
+         boolean interrupted = false;
+         while (applied != r.seq - 1) {
+            try{
+               applyLock.wait();
+            }catch(InterruptedException ex){
+               interrupted = true;
+            }
+         }
+         try{
+            if (failed == null && r.name != null) {
+               old = (r.student == null) ? students.remove(r.name) : students.put(r.name, r.student);
+               if (old != null || r.student != null) {
+                  listener.changed(old, r.student);
+               }
+            }
+         }finally{
+            if (r.name != null) {
+               pending.remove(r.name, r);
+            }
+            applied = r.seq;
+            applyLock.notifyAll();
+            if (interrupted) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      }
+      if (failed != null) {
+         throw new IOException("log write failed, the change was not made", failed);
+      }
+      return old;
+   }
+
+   private void compactIfDue() {
+      if (logRecords.get() >= compactAfter && !compacting) {
+         compactInBackground();
+      }
+   }
+
+   // the log writer thread: everything that is waiting goes out with one fsync
+   private void writeLog() {
+      List<Record> group = new ArrayList<Record>();
+      while (true) {
+         try{
+            group.add(queue.take());
+            queue.drainTo(group);
+            try{
+               int n = 0;
+               for (Record r : group) {
+                  if (r.line != null) {
+                     if (logOut == null) {
+                        logOut = new FileOutputStream(logFile, true);
+                     }
+                     logOut.write(r.line);
+                     n++;
+                  }
+               }
+               if (n > 0) {
+                  if (fsync) {
+                     logOut.getChannel().force(false);
+                  }
+                  logRecords.addAndGet(n);
+               }
+               debug("wrote "+n+" log records with one fsync");
+               for (Record r : group) {
+                  r.done.complete(null);
+               }
+            }catch(IOException ex){
+               for (Record r : group) {
+                  r.done.completeExceptionally(ex);
+               }
+            }
+            group.clear();
+         }catch(InterruptedException ex){
+            return;
+         }
+      }
+   }
+
+   /**
+    * Reads the snapshot and replays the log(s) after it.
+    */
+   public void load() throws IOException {
+      synchronized(writeLock){
+         awaitLog();
+         students.clear();
+         listener.cleared();
+         if (snapshotFile.exists()) {
+            // one student at a time, the file is never held in memory as a whole
+            try (Reader in = StudentJsonReader.open(snapshotFile)) {
+               StudentJsonReader.read(in, stud -> listener.changed(students.put(stud.name,stud),stud),
+                                      loadThreads);
+            }
+         }
+         int replayed = replay(oldLogFile) + replay(logFile);
+         debug("loaded "+students.size()+" students, replayed "+replayed+" log records");
+         logRecords.set(replayed);
+      }
+      if (oldLogFile.exists() || logRecords.get() > 0) {
+         // fold what we just replayed into a new snapshot
+         compact();
+      }
+   }
+
+   private int replay(File log) throws IOException {
+      if (!log.exists()) {
+         return 0;
+      }
+      int n = 0;
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(
+              new FileInputStream(log), StandardCharsets.UTF_8))) {
+         String line;
+         while ((line = in.readLine()) != null) {
+            JSONObject rec;
+            try{
+               rec = new JSONObject(line);
+            }catch(Exception ex){
+               // the last line may be cut short by a crash, it was never acknowledged
+               debug("skipping broken log line in "+log+": "+line);
+               continue;
+            }
+            if (rec.getString("op").equals("add")) {
+               Student stud = new Student(rec.getJSONObject("student"));
+               listener.changed(students.put(stud.name,stud),stud);
+            } else {
+               Student old = students.remove(rec.getString("name"));
+               if (old != null) {
+                  listener.changed(old,null);
+               }
+            }
+            n++;
+         }
+      }
+      return n;
+   }
+
+   // caller holds writeLock, waits until every record from before is written and made
+   private void awaitLog() throws IOException {
+      apply(append(null, null, null));
+   }
+
+   private void compactInBackground() {
+      Thread t = new Thread(() -> {
+         try{
+            compact();
+         }catch(IOException ex){
+            System.out.println("error compacting student log: "+ex.getMessage());
+         }
+      }, "student-compaction");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Writes all students as a snapshot and starts a new log. Writers only
+    * wait while the log is switched, not while the snapshot is written.
+    */
+   public void compact() throws IOException {
+      synchronized(this){
+         if (compacting) {
+            return;
+         }
+         compacting = true;
+      }
+      try{
+         List<Student> copy;
+         synchronized(writeLock){
+            awaitLog();
+            if (oldLogFile.exists()) {
+               // an earlier compaction did not finish, keep its log and add ours to it
+               appendTo(logFile, oldLogFile);
+            } else if (logFile.exists()) {
+               Files.move(logFile.toPath(), oldLogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            closeLog();
+            logRecords.set(0);
+            // students do not change once stored, a shallow copy is a consistent snapshot
+            copy = new ArrayList<Student>(students.values());
+         }
+         writeSnapshot(copy);
+         Files.deleteIfExists(oldLogFile.toPath());
+         debug("compacted "+copy.size()+" students");
+      }finally{
+         compacting = false;
+      }
+   }
+
+   // the log writer is idle (we hold writeLock after a barrier), so we may close its file
+   private void closeLog() throws IOException {
+      if (logOut != null) {
+         logOut.close();
+         logOut = null;
+      }
+   }
+
+   private void appendTo(File from, File to) throws IOException {
+      if (!from.exists()) {
+         return;
+      }
+      try (FileOutputStream out = new FileOutputStream(to, true)) {
+         Files.copy(from.toPath(), out);
+         out.getChannel().force(false);
+      }
+      Files.delete(from.toPath());
+   }
+
+   // written next to the snapshot and then moved over it, so there is always a whole one
+   private void writeSnapshot(List<Student> copy) throws IOException {
+      File tmp = new File(snapshotFile.getPath()+".tmp");
+      try (FileOutputStream fos = new FileOutputStream(tmp);
+           Writer out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+         out.write("{");
+         boolean first = true;
+         for (Student s : copy) {
+            out.write(first ? "\n" : ",\n");
+            first = false;
+            out.write(JSONObject.quote(s.name));
+            out.write(": ");
+            out.write(s.toJsonString());
+         }
+         out.write("\n}\n");
+         out.flush();
+         fos.getChannel().force(true);
+      }
+      Files.move(tmp.toPath(), snapshotFile.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+}
@@ -0,0 +1,92 @@
+package server;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Purpose: how Base does on numbers from 10 to 10000 digits: the four
+ * operations, and reading and writing a number alone, next to BigInteger's
+ * own conversion (new BigInteger(s, radix) and toString(radix)).
+ *
+ * run with: gradle runJmh
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BaseBenchmark {
+
+  @Param({"10", "100", "1000", "10000"})
+  public int digits;
+
+  @Param({"10", "36"})
+  public int base;
+
+  private Base calc = new Base();
+  private String num1;
+  private String num2;
+  private String half;      // divisor with half the digits
+  private BigInteger value;
+
+  @Setup
+  public void setup() {
+    Random rand = new Random(42);
+    num1 = number(rand, digits);
+    num2 = number(rand, digits);
+    half = number(rand, Math.max(1, digits / 2));
+    value = new BigInteger(num1, base);
+  }
+
+  private String number(Random rand, int n) {
+    StringBuilder sb = new StringBuilder(n);
+    sb.append(Character.toUpperCase(Character.forDigit(1 + rand.nextInt(base - 1), base)));
+    for (int i = 1; i < n; i++) {
+      sb.append(Character.toUpperCase(Character.forDigit(rand.nextInt(base), base)));
+    }
+    return sb.toString();
+  }
+
+  @Benchmark
+  public String add() {
+    return calc.add(num1, num2, base);
+  }
+
+  @Benchmark
+  public String subtract() {
+    return calc.subtract(num1, num2, base);
+  }
+
+  @Benchmark
+  public String multiply() {
+    return calc.multiply(num1, num2, base);
+  }
+
+  @Benchmark
+  public String divide() {
+    return calc.divide(num1, half, base);
+  }
+
+  @Benchmark
+  public BigInteger parse() {
+    return Base.parse(num1, base);
+  }
+
+  @Benchmark
+  public BigInteger parseBigInteger() {
+    return new BigInteger(num1, base);
+  }
+
+  @Benchmark
+  public String format() {
+    return Base.format(value, base);
+  }
+
+  @Benchmark
+  public String formatBigInteger() {
+    return value.toString(base).toUpperCase();
+  }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import buffers.OperationProtos.Operation;
+
+/**
+ * Purpose: what the ResultCache saves on skewed traffic. The operations are
+ * drawn from 100000 different ones with a Zipf distribution (the k-th most
+ * asked operation comes with probability proportional to 1/k), a quarter of
+ * them asked with lower case letters or leading zeros. cacheSize 0 is the
+ * server with the cache off.
+ *
+ * run with: gradle runJmh --args 'ResultCacheBenchmark'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultCacheBenchmark {
+
+  private static final int DISTINCT = 100000;
+  private static final int DRAWS = 1 << 16;
+
+  @Param({"0", "1000", "10000"})
+  public int cacheSize;
+
+  @Param({"10", "100", "1000"})
+  public int digits;
+
+  private ResultCache cache;
+  private Operation[] ops = new Operation[DRAWS];
+  private int next;
+
+  @Setup
+  public void setup() {
+    cache = new ResultCache(cacheSize);
+    Random rand = new Random(42);
+    Operation[] distinct = new Operation[DISTINCT];
+    Operation.OperationType[] types = Operation.OperationType.values();
+    for (int i = 0; i < DISTINCT; i++) {
+      distinct[i] = Operation.newBuilder()
+        .setVal1(number(rand, digits))
+        .setVal2(number(rand, Math.max(1, digits / 2)))
+        .setBase(16)
+        .setOperationType(types[rand.nextInt(types.length)])
+        .build();
+    }
+    // inverse of the Zipf distribution function, sampled
+    double[] cdf = new double[DISTINCT];
+    double sum = 0;
+    for (int k = 0; k < DISTINCT; k++) {
+      sum += 1.0 / (k + 1);
+      cdf[k] = sum;
+    }
+    for (int i = 0; i < DRAWS; i++) {
+      int k = java.util.Arrays.binarySearch(cdf, rand.nextDouble() * sum);
+      Operation op = distinct[Math.min(DISTINCT - 1, (k < 0) ? -k - 1 : k)];
+      if (rand.nextInt(4) == 0) {
+        op = op.toBuilder().setVal1("0" + op.getVal1().toLowerCase()).build();
+      }
+      ops[i] = op;
+    }
+  }
+
+  private String number(Random rand, int n) {
+    StringBuilder sb = new StringBuilder(n);
+    sb.append(Character.toUpperCase(Character.forDigit(1 + rand.nextInt(15), 16)));
+    for (int i = 1; i < n; i++) {
+      sb.append(Character.toUpperCase(Character.forDigit(rand.nextInt(16), 16)));
+    }
+    return sb.toString();
+  }
+
+  @Benchmark
+  public ResultCache.Result calculate() {
+    Operation op = ops[next];
+    next = (next + 1) & (DRAWS - 1);
+    return cache.get(op, SockBaseServer::result);
+  }
+
+  @TearDown
+  public void stats() {
+    System.out.println(cache);
+  }
+}
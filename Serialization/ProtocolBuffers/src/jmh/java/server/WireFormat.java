@@ -0,0 +1,292 @@
+package server;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import com.google.protobuf.CodedInputStream;
+
+import buffers.OperationProtos.Operation;
+import buffers.ResponseProtos.Response;
+
+/**
+ * Purpose: the three ways the calculator examples put an operation on the
+ * wire, written the way each of them does it, so WireFormatBenchmark and
+ * WireFormatLoopback can send the same operations through all three:
+ *  - java-json: Sockets/SimpleCustomProtocol. A new connection and new
+ *    object streams for every operation, the request is a JSON string
+ *    (header and payload) sent with writeObject, the answer a plain string.
+ *  - json-stream: Sockets/JavaSocketJSONProtocol. One connection and one
+ *    pair of object streams for all requests, a flat JSON string each way,
+ *    the answer with "ok", "type" and "value".
+ *  - protobuf: this project, delimited Operation and Response messages on
+ *    one connection, read as SockBaseServer and SockBaseClient read them.
+ * The object streams are reset every 1024 messages. The examples never do,
+ * and a stream that is never reset keeps every string it has sent.
+ */
+abstract class WireFormat {
+
+  static final WireFormat[] ALL = { new JavaJson(), new JsonStream(), new Protobuf() };
+
+  private static final Base calc = new Base();
+
+  static WireFormat named(String name) {
+    for (WireFormat format : ALL) {
+      if (format.name().equals(name)) {
+        return format;
+      }
+    }
+    throw new IllegalArgumentException("No wire format " + name);
+  }
+
+  /* one operation of the workload, the same for every format */
+  static final class Op {
+    final Operation.OperationType type;
+    final int base;
+    final String num1;
+    final String num2;
+
+    Op(Operation.OperationType type, int base, String num1, String num2) {
+      this.type = type;
+      this.base = base;
+      this.num1 = num1;
+      this.num2 = num2;
+    }
+
+    String calculate() {
+      return (type == Operation.OperationType.SUB) ? calc.subtract(num1, num2, base)
+        : calc.add(num1, num2, base);
+    }
+  }
+
+  /**
+   * Additions and subtractions in base 2, 10 and 16 of numbers up to 7
+   * digits, the first the larger, which SimpleCustomProtocol's int
+   * arithmetic can do too.
+   */
+  static List<Op> workload(int n, long seed) {
+    Random rand = new Random(seed);
+    int[] bases = { 2, 10, 16 };
+    List<Op> ops = new ArrayList<Op>(n);
+    for (int i = 0; i < n; i++) {
+      int base = bases[rand.nextInt(bases.length)];
+      long a = rand.nextInt(10000000);
+      long b = rand.nextInt(10000000);
+      ops.add(new Op(rand.nextBoolean() ? Operation.OperationType.ADD : Operation.OperationType.SUB, base,
+                     Base.format(Math.max(a, b), base), Base.format(Math.min(a, b), base)));
+    }
+    return ops;
+  }
+
+  abstract String name();
+
+  /* true when the stack opens a new connection for each operation */
+  boolean connectionPerOperation() {
+    return false;
+  }
+
+  /**
+   * The message streams of one connection, set up on top of the socket
+   * streams the way the stack does it. The same class is both ends.
+   */
+  abstract Channel channel(InputStream in, OutputStream out) throws IOException;
+
+  abstract static class Channel {
+    abstract void writeRequest(Op op) throws IOException;
+
+    /* null when the other end has closed */
+    abstract Op readRequest() throws IOException;
+
+    abstract void writeResponse(Op op, String result) throws IOException;
+
+    abstract String readResponse() throws IOException;
+  }
+
+  /**
+   * Object streams made when first used, so each end makes its output
+   * stream and reads the other's stream header in the order the examples do.
+   */
+  abstract static class ObjectChannel extends Channel {
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean reset;
+    private ObjectInputStream ois;
+    private ObjectOutputStream oos;
+    private int written;
+
+    ObjectChannel(InputStream in, OutputStream out, boolean reset) {
+      this.in = in;
+      this.out = out;
+      this.reset = reset;
+    }
+
+    void write(String message) throws IOException {
+      if (oos == null) {
+        oos = new ObjectOutputStream(out);
+      }
+      oos.writeObject(message);
+      if (reset && ++written % 1024 == 0) {
+        oos.reset();
+      }
+      oos.flush();
+    }
+
+    /* null at the end of the stream */
+    String read() throws IOException {
+      try {
+        if (ois == null) {
+          ois = new ObjectInputStream(in);
+        }
+        return (String)ois.readObject();
+      } catch (EOFException ex) {
+        return null;
+      } catch (ClassNotFoundException ex) {
+        throw new IOException(ex);
+      }
+    }
+  }
+
+  static final class JavaJson extends WireFormat {
+    String name() {
+      return "java-json";
+    }
+
+    boolean connectionPerOperation() {
+      return true;
+    }
+
+    Channel channel(InputStream in, OutputStream out) {
+      return new ObjectChannel(in, out, false) {
+        void writeRequest(Op op) throws IOException {
+          JSONObject header = new JSONObject();
+          header.put("operation", op.type.name().toLowerCase());
+          header.put("base", Integer.toString(op.base));
+          header.put("response", "string");
+          JSONObject payload = new JSONObject();
+          payload.put("num1", op.num1);
+          payload.put("num2", op.num2);
+          JSONObject data = new JSONObject();
+          data.put("header", header);
+          data.put("payload", payload);
+          write(data.toString());
+        }
+
+        Op readRequest() throws IOException {
+          String jsonData = read();
+          if (jsonData == null) {
+            return null;
+          }
+          // as SimpleCustomProtocol's server reads it
+          JSONObject data = new JSONObject(new JSONTokener(jsonData));
+          Map<String, Object> header = ((JSONObject)data.get("header")).toMap();
+          Map<String, Object> payload = ((JSONObject)data.get("payload")).toMap();
+          String operation = ((String)header.get("operation")).toLowerCase();
+          return new Op(operation.equals("sub") ? Operation.OperationType.SUB : Operation.OperationType.ADD,
+                        Integer.parseInt((String)header.get("base")),
+                        (String)payload.get("num1"), (String)payload.get("num2"));
+        }
+
+        void writeResponse(Op op, String result) throws IOException {
+          write(result);
+        }
+
+        String readResponse() throws IOException {
+          return read();
+        }
+      };
+    }
+  }
+
+  static final class JsonStream extends WireFormat {
+    String name() {
+      return "json-stream";
+    }
+
+    Channel channel(InputStream in, OutputStream out) {
+      return new ObjectChannel(in, out, true) {
+        void writeRequest(Op op) throws IOException {
+          JSONObject json = new JSONObject();
+          json.put("type", op.type.name().toLowerCase());
+          json.put("base", op.base);
+          json.put("num1", op.num1);
+          json.put("num2", op.num2);
+          write(json.toString());
+        }
+
+        Op readRequest() throws IOException {
+          String jsonRequest = read();
+          if (jsonRequest == null) {
+            return null;
+          }
+          JSONObject json = new JSONObject(jsonRequest);
+          return new Op(json.getString("type").equals("sub") ? Operation.OperationType.SUB : Operation.OperationType.ADD,
+                        json.getInt("base"), json.getString("num1"), json.getString("num2"));
+        }
+
+        void writeResponse(Op op, String result) throws IOException {
+          JSONObject resp = new JSONObject();
+          resp.put("ok", true);
+          resp.put("type", op.type.name().toLowerCase());
+          resp.put("value", result);
+          write(resp.toString());
+        }
+
+        String readResponse() throws IOException {
+          String response = read();
+          JSONObject json = new JSONObject(response);
+          if (!json.getBoolean("ok")) {
+            throw new IOException("Not ok: " + response);
+          }
+          return json.getString("value");
+        }
+      };
+    }
+  }
+
+  static final class Protobuf extends WireFormat {
+    String name() {
+      return "protobuf";
+    }
+
+    Channel channel(InputStream in, OutputStream out) {
+      BufferedInputStream bin = (in == null) ? null : new BufferedInputStream(in);
+      BufferedOutputStream bout = (out == null) ? null : new BufferedOutputStream(out);
+      return new Channel() {
+        void writeRequest(Op op) throws IOException {
+          Operation.newBuilder()
+            .setVal1(op.num1)
+            .setVal2(op.num2)
+            .setBase(op.base)
+            .setOperationType(op.type)
+            .setResponseType(Operation.ResponseType.STRING)
+            .build().writeDelimitedTo(bout);
+          bout.flush();
+        }
+
+        // as SockBaseServer reads it: the frame as bytes, then parsed
+        Op readRequest() throws IOException {
+          int first = bin.read();
+          if (first == -1) {
+            return null;
+          }
+          byte[] message = bin.readNBytes(CodedInputStream.readRawVarint32(first, bin));
+          Operation op = Operation.parseFrom(message);
+          return new Op(op.getOperationType(), op.getBase(), op.getVal1(), op.getVal2());
+        }
+
+        void writeResponse(Op op, String result) throws IOException {
+          Response.newBuilder().setResultString(result).build().writeDelimitedTo(bout);
+          bout.flush();
+        }
+
+        // as SockBaseClient reads it, parseDelimitedFrom makes a 4 KB buffer every time
+        String readResponse() throws IOException {
+          return Response.parseDelimitedFrom(bin).getResultString();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Purpose: CPU time of putting the same operations on the wire and taking
+ * them off again with each WireFormat, in memory, without sockets: the
+ * client writing a request, the server reading it, the server writing the
+ * answer and the client reading that. For java-json every message gets new
+ * object streams, as its connections do, the others keep one stream.
+ * Allocation per operation is shown with the gc profiler.
+ *
+ * run with: gradle runJmh --args 'WireFormatBenchmark -prof gc'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireFormatBenchmark {
+
+  private static final int OPS = 1024;
+
+  @Param({"java-json", "json-stream", "protobuf"})
+  public String format;
+
+  private WireFormat wire;
+  private List<WireFormat.Op> ops;
+  private String[] results = new String[OPS];
+  private int next;
+  private ByteArrayOutputStream sink = new ByteArrayOutputStream(256);
+
+  // java-json: each message alone, with its stream header
+  private byte[][] requests = new byte[OPS][];
+  private byte[][] responses = new byte[OPS][];
+
+  // the others: one stream each way, reading goes round the same operations
+  private WireFormat.Channel requestWriter;
+  private WireFormat.Channel requestReader;
+  private WireFormat.Channel responseWriter;
+  private WireFormat.Channel responseReader;
+
+  @Setup
+  public void setup() throws IOException {
+    wire = WireFormat.named(format);
+    ops = WireFormat.workload(OPS, 42);
+    for (int i = 0; i < OPS; i++) {
+      results[i] = ops.get(i).calculate();
+    }
+    if (wire.connectionPerOperation()) {
+      for (int i = 0; i < OPS; i++) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        wire.channel(null, bytes).writeRequest(ops.get(i));
+        requests[i] = bytes.toByteArray();
+        bytes = new ByteArrayOutputStream();
+        wire.channel(null, bytes).writeResponse(ops.get(i), results[i]);
+        responses[i] = bytes.toByteArray();
+      }
+    } else {
+      requestWriter = wire.channel(null, sink);
+      responseWriter = wire.channel(null, sink);
+      requestReader = wire.channel(loop(true), null);
+      responseReader = wire.channel(loop(false), null);
+    }
+  }
+
+  /*
+   * The bytes of a stream carrying all operations again and again: the
+   * first round with the stream header, then the second round repeated.
+   */
+  private InputStream loop(boolean request) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    WireFormat.Channel channel = wire.channel(null, bytes);
+    byte[][] rounds = new byte[2][];
+    for (int r = 0; r < 2; r++) {
+      bytes.reset();
+      for (int i = 0; i < OPS; i++) {
+        if (request) {
+          channel.writeRequest(ops.get(i));
+        } else {
+          channel.writeResponse(ops.get(i), results[i]);
+        }
+      }
+      rounds[r] = bytes.toByteArray();
+    }
+    return new LoopInputStream(rounds[0], rounds[1]);
+  }
+
+  private int next() {
+    int i = next;
+    next = (next + 1) & (OPS - 1);
+    return i;
+  }
+
+  @Benchmark
+  public int encodeRequest() throws IOException {
+    int i = next();
+    sink.reset();
+    (wire.connectionPerOperation() ? wire.channel(null, sink) : requestWriter).writeRequest(ops.get(i));
+    return sink.size();
+  }
+
+  @Benchmark
+  public WireFormat.Op decodeRequest() throws IOException {
+    if (wire.connectionPerOperation()) {
+      return wire.channel(new ByteArrayInputStream(requests[next()]), null).readRequest();
+    }
+    return requestReader.readRequest();
+  }
+
+  @Benchmark
+  public int encodeResponse() throws IOException {
+    int i = next();
+    sink.reset();
+    (wire.connectionPerOperation() ? wire.channel(null, sink) : responseWriter).writeResponse(ops.get(i), results[i]);
+    return sink.size();
+  }
+
+  @Benchmark
+  public String decodeResponse() throws IOException {
+    if (wire.connectionPerOperation()) {
+      return wire.channel(new ByteArrayInputStream(responses[next()]), null).readResponse();
+    }
+    return responseReader.readResponse();
+  }
+
+  /* reads first, then loop over and over */
+  private static final class LoopInputStream extends InputStream {
+    private final byte[] loop;
+    private byte[] buf;
+    private int pos;
+
+    LoopInputStream(byte[] first, byte[] loop) {
+      this.buf = first;
+      this.loop = loop;
+    }
+
+    public int read() {
+      if (pos == buf.length) {
+        buf = loop;
+        pos = 0;
+      }
+      return buf[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (pos == buf.length) {
+        buf = loop;
+        pos = 0;
+      }
+      int n = Math.min(len, buf.length - pos);
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+  }
+}
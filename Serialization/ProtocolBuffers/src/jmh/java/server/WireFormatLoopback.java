@@ -0,0 +1,186 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Purpose: the same operations sent through each WireFormat over loopback,
+ * one after the other, by a client thread to a server thread in this JVM.
+ * For each format prints
+ *  - bytes on the wire per operation, request and response (object stream
+ *    headers included, TCP and its handshakes not)
+ *  - CPU time and bytes allocated per operation, client and server thread,
+ *    and the client's allocation rate
+ *  - round trip latency percentiles and operations per second
+ * Formats that open a connection per operation send a tenth of the
+ * operations, they are that much slower.
+ *
+ * run with: gradle runWireFormats, or gradle runWireFormats --args '<operations> [format,..]'
+ */
+public class WireFormatLoopback {
+
+  private static final com.sun.management.ThreadMXBean threads =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  public static void main(String args[]) throws Exception {
+    int ops = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    String[] names = (args.length > 1) ? args[1].split(",") : null;
+    System.out.println("format           ops  req B  resp B  client us  server us  client B  server B  client MB/s"
+                       + "     p50 us    p90 us    p99 us  p99.9 us     ops/s");
+    for (WireFormat format : WireFormat.ALL) {
+      if (names == null || Arrays.asList(names).contains(format.name())) {
+        run(format, format.connectionPerOperation() ? ops / 10 : ops);
+      }
+    }
+  }
+
+  private static void run(WireFormat format, int count) throws Exception {
+    List<WireFormat.Op> workload = WireFormat.workload(count, 42);
+    String[] expected = new String[count];
+    for (int i = 0; i < count; i++) {
+      expected[i] = workload.get(i).calculate();
+    }
+    try (ServerSocket serv = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress())) {
+      Thread server = new Thread(() -> serve(format, serv), "wire-server");
+      server.setDaemon(true);
+      server.start();
+
+      // warm up both sides, then measure
+      Client warm = new Client(format, serv.getLocalPort());
+      warm.run(workload.subList(0, Math.min(count / 2, 10000)), expected, new long[count]);
+      warm.close();
+
+      long[] latencies = new long[count];
+      Client client = new Client(format, serv.getLocalPort());
+      long serverCpu = threads.getThreadCpuTime(server.getId());
+      long serverAlloc = threads.getThreadAllocatedBytes(server.getId());
+      long clientCpu = threads.getCurrentThreadCpuTime();
+      long clientAlloc = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+      long start = System.nanoTime();
+      client.run(workload, expected, latencies);
+      client.close();
+      long elapsed = System.nanoTime() - start;
+      clientCpu = threads.getCurrentThreadCpuTime() - clientCpu;
+      clientAlloc = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - clientAlloc;
+      // the server may still be finishing the last connection
+      Thread.sleep(100);
+      serverCpu = threads.getThreadCpuTime(server.getId()) - serverCpu;
+      serverAlloc = threads.getThreadAllocatedBytes(server.getId()) - serverAlloc;
+
+      Arrays.sort(latencies);
+      System.out.printf("%-11s %8d %6.1f %7.1f %10.2f %10.2f %9.0f %9.0f %12.1f %10.1f %9.1f %9.1f %9.1f %9.0f%n",
+                        format.name(), count,
+                        client.sent.count / (double)count, client.received.count / (double)count,
+                        clientCpu / 1e3 / count, serverCpu / 1e3 / count,
+                        clientAlloc / (double)count, serverAlloc / (double)count,
+                        clientAlloc / 1e6 / (elapsed / 1e9),
+                        percentile(latencies, 0.5), percentile(latencies, 0.9),
+                        percentile(latencies, 0.99), percentile(latencies, 0.999),
+                        count / (elapsed / 1e9));
+    }
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    return sorted[Math.min(sorted.length - 1, (int)(sorted.length * p))] / 1e3;
+  }
+
+  /* answers on one thread, one connection after the other */
+  private static void serve(WireFormat format, ServerSocket serv) {
+    while (!serv.isClosed()) {
+      try (Socket sock = serv.accept()) {
+        sock.setTcpNoDelay(true);
+        WireFormat.Channel channel = format.channel(sock.getInputStream(), sock.getOutputStream());
+        WireFormat.Op op;
+        while ((op = channel.readRequest()) != null) {
+          channel.writeResponse(op, op.calculate());
+        }
+      } catch (IOException ex) {
+        if (!serv.isClosed()) {
+          ex.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private static final class Client {
+    private final WireFormat format;
+    private final int port;
+    final Counting sent = new Counting();
+    final Counting received = new Counting();
+    private Socket sock;
+    private WireFormat.Channel channel;
+
+    Client(WireFormat format, int port) {
+      this.format = format;
+      this.port = port;
+    }
+
+    void run(List<WireFormat.Op> ops, String[] expected, long[] latencies) throws IOException {
+      for (int i = 0; i < ops.size(); i++) {
+        long start = System.nanoTime();
+        if (channel == null || format.connectionPerOperation()) {
+          close();
+          sock = new Socket(InetAddress.getLoopbackAddress(), port);
+          sock.setTcpNoDelay(true);
+          channel = format.channel(received.wrap(sock.getInputStream()), sent.wrap(sock.getOutputStream()));
+        }
+        channel.writeRequest(ops.get(i));
+        String result = channel.readResponse();
+        latencies[i] = System.nanoTime() - start;
+        if (!expected[i].equals(result)) {
+          throw new IllegalStateException(format.name() + ": operation " + i + " answered " + result
+                                          + " instead of " + expected[i]);
+        }
+      }
+    }
+
+    void close() throws IOException {
+      if (sock != null) {
+        sock.close();
+        sock = null;
+      }
+    }
+  }
+
+  /* counts the bytes going through the streams it wraps */
+  private static final class Counting {
+    long count;
+
+    InputStream wrap(InputStream in) {
+      return new FilterInputStream(in) {
+        public int read() throws IOException {
+          int b = super.read();
+          if (b >= 0) {
+            count++;
+          }
+          return b;
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException {
+          int n = super.read(buf, off, len);
+          if (n > 0) {
+            count += n;
+          }
+          return n;
+        }
+      };
+    }
+
+    OutputStream wrap(OutputStream out) {
+      return new FilterOutputStream(out) {
+        public void write(int b) throws IOException {
+          out.write(b);
+          count++;
+        }
+
+        public void write(byte[] buf, int off, int len) throws IOException {
+          out.write(buf, off, len);
+          count += len;
+        }
+      };
+    }
+  }
+}
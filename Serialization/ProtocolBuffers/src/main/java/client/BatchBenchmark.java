@@ -0,0 +1,113 @@
+package client;
+
+import java.net.*;
+import java.io.*;
+
+import buffers.OperationProtos.Operation;
+import buffers.OperationProtos.OperationBatch;
+import buffers.ResponseProtos.Response;
+import buffers.ResponseProtos.ResponseBatch;
+
+/**
+ * Loopback throughput of batches against single operations: the same
+ * additions sent over one connection
+ *  - one Operation at a time
+ *  - as single Operations, pipelined with up to 64 unanswered
+ *  - as OperationBatches of each size, one batch at a time
+ * Every answer is checked (operation i is i + 1).
+ * Start the server first, with its output going to /dev/null the console
+ * is not what is measured: gradle runServer > /dev/null
+ */
+class BatchBenchmark {
+
+    public static void main (String args[]) throws Exception {
+        if (args.length < 2 || args.length > 4) {
+            System.out.println("Expected arguments: <host(String)> <port(int)> [operations(int)] [batch sizes(1,10,..)]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int ops = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+        String sizes = (args.length > 3) ? args[3] : "10,100,1000,10000";
+
+        try (Socket sock = new Socket(host, port)) {
+            sock.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+
+            // warm up both sides
+            batches(out, in, ops, 1000);
+            singles(out, in, ops / 10, 64);
+
+            long start = System.nanoTime();
+            singles(out, in, ops / 10, 1);
+            report("single operations, window 1", ops / 10, start);
+
+            start = System.nanoTime();
+            singles(out, in, ops, 64);
+            report("single operations, window 64", ops, start);
+
+            for (String size : sizes.split(",")) {
+                int n = Integer.parseInt(size.trim());
+                start = System.nanoTime();
+                batches(out, in, ops, n);
+                report("batches of " + n, ops / n * n, start);
+            }
+        }
+    }
+
+    private static void singles(OutputStream out, InputStream in, int count, int window) throws IOException {
+        int sent = 0;
+        for (int received = 0; received < count; received++) {
+            if (sent - received <= window / 2 && sent < count) {
+                while (sent < count && sent - received < window) {
+                    operation(sent++).writeDelimitedTo(out);
+                }
+                out.flush();
+            }
+            Response response = Response.parseDelimitedFrom(in);
+            check(response.getRequestId(), response);
+        }
+    }
+
+    private static void batches(OutputStream out, InputStream in, int count, int size) throws IOException {
+        for (int first = 0; first + size <= count; first += size) {
+            OperationBatch.Builder batch = OperationBatch.newBuilder();
+            for (int i = first; i < first + size; i++) {
+                batch.addOperations(operation(i));
+            }
+            batch.build().writeDelimitedTo(out);
+            out.flush();
+            ResponseBatch responses = ResponseBatch.parseDelimitedFrom(in);
+            if (responses.getResponsesCount() != size) {
+                throw new IllegalStateException(responses.getResponsesCount() + " answers to a batch of " + size);
+            }
+            for (int i = 0; i < size; i++) {
+                check(first + i, responses.getResponses(i));
+            }
+        }
+    }
+
+    private static Operation operation(int i) {
+        return Operation.newBuilder()
+            .setVal1(Integer.toString(i))
+            .setVal2("1")
+            .setBase(10)
+            .setOperationType(Operation.OperationType.ADD)
+            .setResponseType(Operation.ResponseType.STRING)
+            .setRequestId(i)
+            .build();
+    }
+
+    private static void check(long id, Response response) {
+        if (response.getStatus() != Response.Status.OK
+            || !response.getResultString().equals(Long.toString(id + 1))) {
+            throw new IllegalStateException("operation " + id + " answered " + response.getResultString());
+        }
+    }
+
+    private static void report(String what, int ops, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-30s %8d ops %10.0f ops/s%n", what, ops, ops / seconds);
+    }
+}
@@ -0,0 +1,130 @@
+package client;
+
+import java.net.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import buffers.OperationProtos.Operation;
+import buffers.ResponseProtos.Response;
+
+/**
+ * Loopback throughput of the server: the same number of additions sent
+ *  - with a new connection for each operation, like SockBaseClient
+ *  - over one connection, waiting for each answer before the next operation
+ *  - over one connection, pipelined: up to <window> operations sent ahead
+ *  - over <connections> connections at once, each pipelined
+ * Every answer is checked against its requestId (operation i is i + 1).
+ * Start the server first, with its output going to /dev/null the console
+ * is not what is measured: gradle runServer > /dev/null
+ */
+class PipelineBenchmark {
+
+    public static void main (String args[]) throws Exception {
+        if (args.length < 2 || args.length > 5) {
+            System.out.println("Expected arguments: <host(String)> <port(int)> [operations(int)] [connections(int)] [window(int)]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int ops = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+        int connections = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        int window = (args.length > 4) ? Integer.parseInt(args[4]) : 64;
+
+        // warm up both sides
+        pipelined(host, port, 0, ops, window);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ops / 10; i++) {
+            try (Socket sock = new Socket(host, port)) {
+                operation(i).writeDelimitedTo(sock.getOutputStream());
+                check(i, Response.parseDelimitedFrom(sock.getInputStream()));
+            }
+        }
+        report("connection per operation", ops / 10, start);
+
+        start = System.nanoTime();
+        pipelined(host, port, 0, ops, 1);
+        report("1 connection, window 1", ops, start);
+
+        start = System.nanoTime();
+        pipelined(host, port, 0, ops, window);
+        report("1 connection, window " + window, ops, start);
+
+        start = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>();
+        int each = ops / connections;
+        for (int c = 0; c < connections; c++) {
+            final int first = c * each;
+            Thread t = new Thread(() -> {
+                try {
+                    pipelined(host, port, first, each, window);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        report(connections + " connections, window " + window, each * connections, start);
+    }
+
+    /**
+     * Sends operations first..first+count on one connection with at most
+     * window of them unanswered. Writes are flushed in bursts of half a
+     * window, so the server gets several operations per packet.
+     */
+    private static void pipelined(String host, int port, int first, int count, int window) throws IOException {
+        try (Socket sock = new Socket(host, port)) {
+            sock.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+            BitSet answered = new BitSet(count);
+            int sent = 0;
+            for (int received = 0; received < count; received++) {
+                if (sent - received <= window / 2 && sent < count) {
+                    while (sent < count && sent - received < window) {
+                        operation(first + sent++).writeDelimitedTo(out);
+                    }
+                    out.flush();
+                }
+                Response response = Response.parseDelimitedFrom(in);
+                check(-1, response);
+                answered.set((int)(response.getRequestId() - first));
+            }
+            if (answered.cardinality() != count) {
+                throw new IllegalStateException("only " + answered.cardinality() + " of " + count + " answered");
+            }
+        }
+    }
+
+    private static Operation operation(int i) {
+        return Operation.newBuilder()
+            .setVal1(Integer.toString(i))
+            .setVal2("1")
+            .setBase(10)
+            .setOperationType(Operation.OperationType.ADD)
+            .setResponseType(Operation.ResponseType.STRING)
+            .setRequestId(i)
+            .build();
+    }
+
+    /* id -1 takes the id from the response */
+    private static void check(long id, Response response) {
+        if (id < 0) {
+            id = response.getRequestId();
+        }
+        if (!response.getResultString().equals(Long.toString(id + 1))) {
+            throw new IllegalStateException("operation " + id + " answered " + response.getResultString());
+        }
+    }
+
+    private static void report(String what, int ops, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-30s %8d ops %10.0f ops/s%n", what, ops, ops / seconds);
+    }
+}
@@ -9,7 +9,9 @@ import java.io.*;
 import org.json.*;
 
 import buffers.OperationProtos.Operation;
+import buffers.OperationProtos.OperationBatch;
 import buffers.ResponseProtos.Response;
+import buffers.ResponseProtos.ResponseBatch;
 
 class SockBaseClient {
      
@@ -23,6 +25,7 @@ class SockBaseClient {
 
         if (args.length != 3) {
             System.out.println("Expected arguments: <host(String)> <port(int)> <data(json file)>");
+            System.out.println("The file holds one operation or an array of operations, sent as one batch");
             System.exit(1);
         }
         String host = args[0];
@@ -34,12 +37,22 @@ class SockBaseClient {
         }
         String filename = args[2];
         Operation op = null;
+        OperationBatch batch = null;
         
         // read JSON data from the file
-        JSONObject data = null;
+        Object data = null;
         try {
           data = readJson(filename);
-          op = generateObjectFromPB(data);
+          if (data instanceof JSONArray) {
+            if (((JSONArray)data).length() == 0) {
+              // an empty batch is zero bytes on the wire, the server would take it for an operation
+              System.out.println("The array holds no operations, nothing to send");
+              System.exit(1);
+            }
+            batch = generateBatchFromPB((JSONArray)data);
+          } else {
+            op = generateObjectFromPB((JSONObject)data);
+          }
         } catch (IOException ex) {
           ex.printStackTrace();
         } catch (JSONException ex) {
@@ -52,13 +65,23 @@ class SockBaseClient {
 
             // write to the server
             out = serverSock.getOutputStream();
-            op.writeDelimitedTo(out);
-
-            // read from the server
             in = serverSock.getInputStream();
-            Response response = Response.parseDelimitedFrom(in);
-
-            System.out.println("Result is " + response.getResultString());
+            if (batch != null) {
+              batch.writeDelimitedTo(out);
+
+              // read from the server, the results are in the order of the operations
+              ResponseBatch responses = ResponseBatch.parseDelimitedFrom(in);
+              for (Response response : responses.getResponsesList()) {
+                System.out.println("Result is " + response.getResultString());
+              }
+            } else {
+              op.writeDelimitedTo(out);
+
+              // read from the server
+              Response response = Response.parseDelimitedFrom(in);
+
+              System.out.println("Result is " + response.getResultString());
+            }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -68,14 +91,23 @@ class SockBaseClient {
         }
     }
 
-    private static JSONObject readJson(String filename) throws IOException, JSONException {
+    /* a JSONObject for one operation or a JSONArray of them */
+    private static Object readJson(String filename) throws IOException, JSONException {
       // read json from build directory, so the getResource is needed
       File file = new File(
         SockBaseClient.class.getResource("/"+filename).getFile()
       );
       Reader reader = new FileReader(file);
       JSONTokener jsonTokener = new JSONTokener(reader);
-      return new JSONObject(jsonTokener);
+      return jsonTokener.nextValue();
+    }
+
+    private static OperationBatch generateBatchFromPB(JSONArray data) {
+      OperationBatch.Builder batch = OperationBatch.newBuilder();
+      for (int i = 0; i < data.length(); i++) {
+        batch.addOperations(generateObjectFromPB(data.getJSONObject(i)));
+      }
+      return batch.build();
     }
 
     private static Operation generateObjectFromPB(JSONObject data) {
@@ -1,58 +1,226 @@
 package server;
 
-class Base { 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 
-  private int convertToInt(char ch) {
-   if(ch >= '0' && ch <= '9')
-      return (int)ch - '0';
-   else
-      return (int)ch - 'A' + 10;
+/**
+ * Arithmetic on numbers written in any base from 2 to 36, digits 0-9 then
+ * A-Z (lower case is read too), with an optional leading sign.
+ *
+ * Numbers short enough to fit in a long are calculated as longs, anything
+ * longer, or a long result that overflows, with BigInteger. Long numbers are
+ * read divide and conquer: the digits are split in two at a power of the
+ * base, and each part is read the same way down to pieces that fit in a
+ * long. Reading with new BigInteger(num, base) goes one piece after the
+ * other, which takes quadratic time on numbers of thousands of digits.
+ * The powers of each base are computed once and kept. Writing uses
+ * BigInteger.toString, which splits the same way.
+ */
+class Base {
+
+  private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+  // value of each character as a digit, -1 for characters that are none
+  private static final byte[] VALUES = new byte[128];
+  // number of digits that always fit in a long, for each base
+  private static final int[] LONG_DIGITS = new int[37];
+  // POWERS[base].get(j) is base^(LONG_DIGITS[base] * 2^j)
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final List<BigInteger>[] POWERS = new List[37];
+
+  static {
+    java.util.Arrays.fill(VALUES, (byte)-1);
+    for (int i = 0; i < DIGITS.length; i++) {
+      VALUES[DIGITS[i]] = (byte)i;
+      VALUES[Character.toLowerCase(DIGITS[i])] = (byte)i;
+    }
+    for (int base = 2; base <= 36; base++) {
+      long v = 1;
+      int n = 0;
+      while (v <= Long.MAX_VALUE / base) {
+        v *= base;
+        n++;
+      }
+      LONG_DIGITS[base] = n;
+      POWERS[base] = new ArrayList<BigInteger>();
+      POWERS[base].add(BigInteger.valueOf(v));
+    }
   }
-  
-  private char convertToBase(int n) {
-    if (n >= 0 && n <= 9) 
-        return (char)(n + 48); 
-    else
-        return (char)(n - 10 + 65);
+
+  public String add(String num1, String num2, int base) {
+    return calculate('+', num1, num2, base);
   }
 
-  /* convert a number from base-N to base-10 */
-  private int toDecimal(String num, int base) {
-    int len = num.length();
-    int exp = 1;
-    int decimalVal = 0;
+  public String subtract(String num1, String num2, int base) {
+    return calculate('-', num1, num2, base);
+  }
 
-    for(int i = len - 1; i >= 0; i--) {
-      int _tmp = convertToInt(num.charAt(i));
-      if(_tmp >= base) {
-         throw new java.lang.RuntimeException("Incorrect value provided for the given base!");
-       }
-       decimalVal += _tmp * exp;
-       exp *= base;
+  /* kept for callers of the old name */
+  public String substract(String num1, String num2, int base) {
+    return subtract(num1, num2, base);
+  }
+
+  public String multiply(String num1, String num2, int base) {
+    return calculate('*', num1, num2, base);
+  }
+
+  /* integer division, rounded toward zero */
+  public String divide(String num1, String num2, int base) {
+    return calculate('/', num1, num2, base);
+  }
+
+  private String calculate(char op, String num1, String num2, int base) {
+    checkBase(base);
+    if (fitsLong(num1, base) && fitsLong(num2, base)) {
+      long a = parseLong(num1, base);
+      long b = parseLong(num2, base);
+      // overflow is checked without exceptions, a result that does not fit is calculated again below
+      long r;
+      switch (op) {
+        case '+':
+          r = a + b;
+          if (((a ^ r) & (b ^ r)) >= 0) {
+            return format(r, base);
+          }
+          break;
+        case '-':
+          r = a - b;
+          if (((a ^ b) & (a ^ r)) >= 0) {
+            return format(r, base);
+          }
+          break;
+        case '*':
+          r = a * b;
+          long high = Math.multiplyHigh(a, b);
+          if ((high == 0 && r >= 0) || (high == -1 && r < 0)) {
+            return format(r, base);
+          }
+          break;
+        default:
+          if (b == 0) {
+            throw new ArithmeticException("Division by zero!");
+          }
+          if (a != Long.MIN_VALUE || b != -1) {
+            return format(a / b, base);
+          }
+      }
+    }
+    BigInteger a = parse(num1, base);
+    BigInteger b = parse(num2, base);
+    switch (op) {
+      case '+': return format(a.add(b), base);
+      case '-': return format(a.subtract(b), base);
+      case '*': return format(a.multiply(b), base);
+      default:
+        if (b.signum() == 0) {
+          throw new ArithmeticException("Division by zero!");
+        }
+        return format(a.divide(b), base);
+    }
+  }
+
+  private static void checkBase(int base) {
+    if (base < 2 || base > 36) {
+      throw new IllegalArgumentException("Base must be between 2 and 36, not " + base);
     }
-    return decimalVal;
   }
 
-  /* convert a number from base-10 to base-N */
-  private String toBaseN(int num, int base) {
-    StringBuilder baseN = new StringBuilder("");
-     while(num > 0) {
-        baseN.append(convertToBase(num % base));
-        num /= base;
-     }
-     return baseN.reverse().toString();
+  private static int signLength(String num) {
+    if (num.isEmpty() || (num.length() == 1 && (num.charAt(0) == '-' || num.charAt(0) == '+'))) {
+      throw new IllegalArgumentException("No digits provided!");
+    }
+    return (num.charAt(0) == '-' || num.charAt(0) == '+') ? 1 : 0;
   }
 
-  public String add(String num1, String num2, int base) {
-    int num1Int = toDecimal(num1, base);
-    int num2Int = toDecimal(num2, base);
-    return toBaseN(num1Int + num2Int, base);
+  private static boolean fitsLong(String num, int base) {
+    return num.length() - signLength(num) <= LONG_DIGITS[base];
   }
 
-  public String substract(String num1, String num2, int base) {
-    int num1Int = toDecimal(num1, base);
-    int num2Int = toDecimal(num2, base);
-    return toBaseN(num1Int - num2Int, base);
+  /* a number with few enough digits to fit */
+  private static long parseLong(String num, int base) {
+    int from = signLength(num);
+    long ret = parseDigits(num, from, num.length(), base);
+    return (from == 1 && num.charAt(0) == '-') ? -ret : ret;
+  }
+
+  /* the digits from..to, there must be few enough to fit */
+  private static long parseDigits(String num, int from, int to, int base) {
+    long ret = 0;
+    for (int i = from; i < to; i++) {
+      char c = num.charAt(i);
+      int d = (c < 128) ? VALUES[c] : -1;
+      if (d < 0 || d >= base) {
+        throw new IllegalArgumentException("Incorrect value provided for the given base!");
+      }
+      ret = ret * base + d;
+    }
+    return ret;
+  }
+
+  /* convert a number from base-N to a BigInteger */
+  static BigInteger parse(String num, int base) {
+    checkBase(base);
+    int from = signLength(num);
+    BigInteger ret = parseBig(num, from, num.length(), base);
+    return (from == 1 && num.charAt(0) == '-') ? ret.negate() : ret;
+  }
+
+  private static BigInteger parseBig(String num, int from, int to, int base) {
+    int chunk = LONG_DIGITS[base];
+    int n = to - from;
+    if (n <= chunk) {
+      return BigInteger.valueOf(parseDigits(num, from, to, base));
+    }
+    // the low part is the largest chunk * 2^j digits that leaves some for the high part
+    int j = 0;
+    while ((long)chunk << (j + 1) < n) {
+      j++;
+    }
+    int mid = to - (chunk << j);
+    return parseBig(num, from, mid, base).multiply(power(base, j))
+      .add(parseBig(num, mid, to, base));
+  }
+
+  /* convert a number to base-N */
+  static String format(BigInteger num, int base) {
+    checkBase(base);
+    if (num.bitLength() < 64) {
+      return format(num.longValue(), base);
+    }
+    // BigInteger already writes large numbers divide and conquer, only the letters need changing
+    String ret = num.toString(base);
+    return (base > 10) ? ret.toUpperCase() : ret;
+  }
+
+  static String format(long num, int base) {
+    if (num == 0) {
+      return "0";
+    }
+    char[] buf = new char[65];
+    int pos = buf.length;
+    boolean negative = num < 0;
+    // digits of the negative value, so Long.MIN_VALUE works too
+    long n = negative ? num : -num;
+    while (n <= -base) {
+      buf[--pos] = DIGITS[(int)-(n % base)];
+      n /= base;
+    }
+    buf[--pos] = DIGITS[(int)-n];
+    if (negative) {
+      buf[--pos] = '-';
+    }
+    return new String(buf, pos, buf.length - pos);
+  }
+
+  /* base^(LONG_DIGITS[base] * 2^j), each one squared from the one before */
+  private static BigInteger power(int base, int j) {
+    List<BigInteger> powers = POWERS[base];
+    synchronized (powers) {
+      while (powers.size() <= j) {
+        BigInteger last = powers.get(powers.size() - 1);
+        powers.add(last.multiply(last));
+      }
+      return powers.get(j);
+    }
   }
-	 
-} 
+}
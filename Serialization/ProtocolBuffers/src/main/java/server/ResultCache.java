@@ -0,0 +1,202 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import buffers.OperationProtos.Operation;
+
+/**
+ * Bounded cache of calculated results, for traffic where the same
+ * operations come again and again.
+ *
+ * The key is the operation written the same way for all ways of asking it:
+ * digits upper case, no leading zeros or plus sign, and for add and
+ * multiply the smaller operand first, so 0a + 1 in base 16 and 1 + A are
+ * one entry. The response type is not part of the key, the result is
+ * wrapped after the lookup.
+ *
+ * The entries are split over segments by the hash of the key, each a
+ * LinkedHashMap in access order behind its own lock, which drops its least
+ * recently used entry when full. Operations on short numbers, which Base
+ * calculates as longs in less time than a lookup takes, skip the cache.
+ * Operations with very long operands are calculated without being kept, so
+ * the memory the cache takes is bounded by its size.
+ */
+class ResultCache {
+
+  /* the result of an operation, text is the error message when failed */
+  static final class Result {
+    final String text;
+    final boolean failed;
+
+    Result(String text, boolean failed) {
+      this.text = text;
+      this.failed = failed;
+    }
+  }
+
+  private static final int SEGMENTS = 16;
+  // operations with fewer digits than this in all are calculated faster than looked up
+  private static final int MIN_DIGITS = 32;
+  // operations with more digits than this in all are not kept
+  private static final int MAX_DIGITS = 4096;
+
+  private final Map<Key, Result>[] segments;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /* capacity 0 turns the cache off, every operation is calculated */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  ResultCache(int capacity) {
+    if (capacity <= 0) {
+      segments = null;
+      return;
+    }
+    int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+    segments = new Map[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+          if (size() > perSegment) {
+            evictions.increment();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+  }
+
+  boolean enabled() {
+    return segments != null;
+  }
+
+  /**
+   * The cached result of the operation, or the one calculate returns, which
+   * is then kept. Two threads missing the same operation both calculate it.
+   */
+  Result get(Operation op, Function<Operation, Result> calculate) {
+    int length = op.getVal1().length() + op.getVal2().length();
+    if (segments == null || length < MIN_DIGITS || length > MAX_DIGITS) {
+      return calculate.apply(op);
+    }
+    Key key = new Key(op);
+    Map<Key, Result> segment = segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+    Result result;
+    synchronized (segment) {
+      result = segment.get(key);
+    }
+    if (result != null) {
+      hits.increment();
+      return result;
+    }
+    misses.increment();
+    result = calculate.apply(op);
+    synchronized (segment) {
+      segment.put(key, result);
+    }
+    return result;
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  public String toString() {
+    if (segments == null) {
+      return "cache off";
+    }
+    int size = 0;
+    for (Map<Key, Result> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    long h = hits(), m = misses();
+    return String.format("cache: %d hits, %d misses (%.1f%% hits), %d entries, %d evicted",
+                         h, m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m), size, evictions.sum());
+  }
+
+  private static final class Key {
+    final int type;
+    final int base;
+    final String num1;
+    final String num2;
+    final int hash;
+
+    Key(Operation op) {
+      String a = normalize(op.getVal1());
+      String b = normalize(op.getVal2());
+      Operation.OperationType t = op.getOperationType();
+      if ((t == Operation.OperationType.ADD || t == Operation.OperationType.MUL) && a.compareTo(b) > 0) {
+        String swap = a;
+        a = b;
+        b = swap;
+      }
+      type = t.getNumber();
+      base = op.getBase();
+      num1 = a;
+      num2 = b;
+      hash = 31 * (31 * (31 * type + base) + a.hashCode()) + b.hashCode();
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key)o;
+      return hash == k.hash && type == k.type && base == k.base
+        && num1.equals(k.num1) && num2.equals(k.num2);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /*
+   * the same number written without plus sign, leading zeros or lower case
+   * letters; anything Base would not read stays as it is, so it still fails
+   */
+  static String normalize(String num) {
+    int from = (num.startsWith("+") || num.startsWith("-")) ? 1 : 0;
+    int digits = from;
+    while (digits < num.length() - 1 && num.charAt(digits) == '0') {
+      digits++;
+    }
+    if (digits == num.length() || num.charAt(digits) == '+' || num.charAt(digits) == '-') {
+      return num;
+    }
+    boolean lower = false;
+    for (int i = digits; i < num.length(); i++) {
+      char c = num.charAt(i);
+      if (c >= 'a' && c <= 'z') {
+        lower = true;
+        break;
+      }
+    }
+    boolean negative = from == 1 && num.charAt(0) == '-'
+      && !(digits == num.length() - 1 && num.charAt(digits) == '0'); // not -0
+    if (!lower && digits == (negative ? 1 : 0)) {
+      return num;
+    }
+    StringBuilder ret = new StringBuilder(num.length() - digits + 1);
+    if (negative) {
+      ret.append('-');
+    }
+    for (int i = digits; i < num.length(); i++) {
+      char c = num.charAt(i);
+      // only a-z, Character.toUpperCase would turn some other letters into A-Z
+      ret.append((c >= 'a' && c <= 'z') ? (char)(c - 'a' + 'A') : c);
+    }
+    return ret.toString();
+  }
+}
@@ -2,82 +2,312 @@ package server;
 
 import java.net.*;
 import java.io.*;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import server.Base;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
 import buffers.OperationProtos.Operation;
+import buffers.OperationProtos.OperationBatch;
 import buffers.ResponseProtos.Response;
+import buffers.ResponseProtos.ResponseBatch;
 
 
+/**
+ * Calculator server. A client connection stays open for as many delimited
+ * Operations as the client sends, until it closes the connection (a client
+ * that sends one and closes works as before). Operations are calculated by a
+ * pool of worker threads, so several clients are served at once and a client
+ * may send more operations without waiting for the answers. Answers go out as
+ * soon as they are ready and may be in a different order, each carries the
+ * requestId of its operation.
+ * An OperationBatch is answered with one ResponseBatch. A large batch is
+ * split over all cores, a small one is calculated by the worker it is
+ * given to.
+ * Results are kept in a ResultCache, repeated operations are not calculated
+ * again.
+ */
 class SockBaseServer {
+    // operations of one connection read ahead of their answers, more wait in the socket
+    private static final int maxInFlight = 64;
+    // batches with at least this many operations are calculated in parallel
+    private static final int parallelBatch = 256;
+    private static final Base base = new Base(); // has no state, shared by all
+    private static ResultCache cache = new ResultCache(0);
+    // batches answered and the operations in them, printed with the cache statistics
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder batchedOperations = new LongAdder();
+
     public static void main (String args[]) throws Exception {
 
-        int count = 0;
         ServerSocket    serv = null;
-        InputStream in = null;
-        OutputStream out = null;
-        Socket clientSocket = null;
         int port = 9099; // default port
         int sleepDelay = 10000; // default delay
-        if (args.length != 2) {
-          System.out.println("Expected arguments: <port(int)> <delay(int)>");
+        int workers = Runtime.getRuntime().availableProcessors();
+        int cacheSize = 10000; // default number of results kept
+        if (args.length < 2 || args.length > 4) {
+          System.out.println("Expected arguments: <port(int)> <delay(int)> [workers(int)] [cache size(int), 0 for none]");
           System.exit(1);
 		}
-        
+
         try {
           port = Integer.parseInt(args[0]);
           sleepDelay = Integer.parseInt(args[1]);
+          if (args.length > 2) {
+            workers = Integer.parseInt(args[2]);
+          }
+          if (args.length > 3) {
+            cacheSize = Integer.parseInt(args[3]);
+          }
         } catch (NumberFormatException nfe) {
-          System.out.println("[Port|sleepDelay] must be an integer");
+          System.out.println("[Port|sleepDelay|workers|cache size] must be an integer");
           System.exit(2);
         }
+        cache = new ResultCache(cacheSize);
+        printStats();
         try {
             serv = new ServerSocket(port);
         } catch(Exception e) {
           e.printStackTrace();
           System.exit(2);
         }
+        ExecutorService calculators = Executors.newFixedThreadPool(workers);
+        // one thread per connection only reads, it is waiting on the socket most of the time
+        ExecutorService sessions = Executors.newCachedThreadPool();
+        System.out.println("Ready...");
         while (serv.isBound() && !serv.isClosed()) {
-            System.out.println("Ready...");
             try {
-                clientSocket = serv.accept();
-                in = clientSocket.getInputStream();
-                out = clientSocket.getOutputStream();
-                // read the proto object and put into new objct
-                Operation op = Operation.parseDelimitedFrom(in);
-                String result = null;
-                String num1 = op.getVal1();
-                String num2 = op.getVal2();
-                int baseN = op.getBase();
-
-                Base base = new Base();
-
-                if (op.getOperationType() == Operation.OperationType.ADD) {
-                  result = base.add(num1, num2, baseN);
-                  System.out.println("base " + baseN + ": " + num1 + " + " + num2 + " = " + result);
-                } else if (op.getOperationType() == Operation.OperationType.SUB) {
-                  result = base.substract(num1, num2, baseN);
-                  System.out.println("base " + baseN + ": " + num1 + " - " + num2 + " = " + result);
-                }
-                if (op.getResponseType() == Operation.ResponseType.JSON){
-                  //just building a JSON strinng
-                  result = "{'result':'" + result +"'}";
-                }
-                Response response = buildResponse(result);
-                response.writeDelimitedTo(out);
+                Socket clientSocket = serv.accept();
+                sessions.execute(() -> serve(clientSocket, calculators));
             } catch (Exception ex) {
                 ex.printStackTrace();
-            } finally {
-                if (out != null)  out.close();
-                if (in != null)   in.close();
-                if (clientSocket != null) clientSocket.close();
             }
         }
     }
 
-    private static Response buildResponse(String result) {
-      Response.Builder response = Response.newBuilder();
-      response.setResultString(result);
-      return response.build();
+    /* prints the batch and cache statistics every 10 seconds while there are batches or lookups */
+    private static void printStats() {
+        Thread t = new Thread(() -> {
+            long seen = 0;
+            while (true) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                long now = batches.sum() + cache.hits() + cache.misses();
+                if (now != seen) {
+                    if (batches.sum() > 0) {
+                        System.out.println("batches: " + batches.sum() + ", " + batchedOperations.sum() + " operations");
+                    }
+                    if (cache.enabled()) {
+                        System.out.println(cache);
+                    }
+                    seen = now;
+                }
+            }
+        }, "stats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Reads operations until the client closes the connection and hands each
+     * to a worker. Answers are flushed only when none of the connection is
+     * still being calculated and no more operations have been read, so a
+     * burst of operations gets its answers in few packets. Whichever of the
+     * reader and the last worker sees the other done flushes.
+     */
+    private static void serve(Socket clientSocket, ExecutorService calculators) {
+        Semaphore window = new Semaphore(maxInFlight);
+        AtomicInteger pending = new AtomicInteger(0);
+        AtomicBoolean reading = new AtomicBoolean(false);
+        try (Socket sock = clientSocket) {
+            // answers are already sent in bursts, Nagle would hold back the end of a large one
+            sock.setTcpNoDelay(true);
+            BufferedInputStream in = new BufferedInputStream(sock.getInputStream());
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            while (true) {
+                if (in.available() == 0) {
+                    // about to wait for the client, answer everything first
+                    reading.set(false);
+                    if (pending.get() == 0) {
+                        synchronized (out) {
+                            out.flush();
+                        }
+                    }
+                }
+                // read the proto objects until the client closes
+                byte[] message = readDelimited(in);
+                if (message == null) {
+                    break;
+                }
+                reading.set(true);
+                window.acquire();
+                pending.incrementAndGet();
+                calculators.execute(() -> {
+                    try {
+                        MessageLite response = answer(message);
+                        synchronized (out) {
+                            response.writeDelimitedTo(out);
+                        }
+                    } catch (IOException ex) {
+                        System.out.println("Could not answer " + sock.getRemoteSocketAddress() + ": " + ex.getMessage());
+                    } finally {
+                        // also when answering failed, or the connection is never flushed again
+                        synchronized (out) {
+                            if (pending.decrementAndGet() == 0 && !reading.get()) {
+                                try {
+                                    out.flush();
+                                } catch (IOException ex) {
+                                    System.out.println("Could not answer " + sock.getRemoteSocketAddress() + ": " + ex.getMessage());
+                                }
+                            }
+                        }
+                        window.release();
+                    }
+                });
+            }
+            // answer what is still being calculated before closing
+            window.acquire(maxInFlight);
+            synchronized (out) {
+                out.flush();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /* the bytes of the next delimited message, null when the client has closed */
+    private static byte[] readDelimited(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        int size = CodedInputStream.readRawVarint32(first, in);
+        byte[] message = in.readNBytes(size);
+        if (message.length < size) {
+            throw new EOFException("Connection closed in the middle of a message");
+        }
+        return message;
     }
-}
 
+    /*
+     * the answer to one message; a message that cannot be parsed or
+     * calculated gets an ERROR Response (in a ResponseBatch if it looked like
+     * a batch), with the requestId if that much could be read
+     */
+    private static MessageLite answer(byte[] message) {
+        boolean batch = false;
+        try {
+            batch = isBatch(message);
+            return batch ? calculate(OperationBatch.parseFrom(message)) : calculate(Operation.parseFrom(message));
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("Could not read or calculate a message: " + ex.getMessage());
+            MessageLite partial = (ex instanceof InvalidProtocolBufferException)
+                ? ((InvalidProtocolBufferException)ex).getUnfinishedMessage() : null;
+            Response.Builder error = Response.newBuilder()
+                .setResultString("Error: " + ex.getMessage())
+                .setStatus(Response.Status.ERROR);
+            if (partial instanceof Operation && ((Operation)partial).hasRequestId()) {
+                error.setRequestId(((Operation)partial).getRequestId());
+            }
+            if (!batch) {
+                return error.build();
+            }
+            ResponseBatch.Builder response = ResponseBatch.newBuilder().addResponses(error);
+            if (partial instanceof OperationBatch && ((OperationBatch)partial).hasRequestId()) {
+                response.setRequestId(((OperationBatch)partial).getRequestId());
+            }
+            return response.build();
+        }
+    }
+
+    /* batches start with a field numbered 16 or more, operations never do */
+    private static boolean isBatch(byte[] message) throws IOException {
+        return message.length > 0 && (CodedInputStream.newInstance(message).readTag() >>> 3) >= 16;
+    }
+
+    static ResponseBatch calculate(OperationBatch batch) {
+        int n = batch.getOperationsCount();
+        Response[] responses = new Response[n];
+        IntStream range = IntStream.range(0, n);
+        if (n >= parallelBatch) {
+            range = range.parallel();
+        }
+        range.forEach(i -> responses[i] = calculate(batch.getOperations(i), false));
+        batches.increment();
+        batchedOperations.add(n);
+        ResponseBatch.Builder response = ResponseBatch.newBuilder();
+        response.addAllResponses(Arrays.asList(responses));
+        if (batch.hasRequestId()) {
+          response.setRequestId(batch.getRequestId());
+        }
+        return response.build();
+    }
+
+    static Response calculate(Operation op) {
+        return calculate(op, true);
+    }
+
+    /* print is false for the operations of a batch, which are only counted */
+    private static Response calculate(Operation op, boolean print) {
+        ResultCache.Result r = cache.get(op, SockBaseServer::result);
+        String result = r.text;
+        if (print) {
+          System.out.println("base " + op.getBase() + ": " + op.getVal1() + (r.failed ? ", " : sign(op))
+                             + op.getVal2() + (r.failed ? ": " : " = ") + result);
+        }
+        if (op.getResponseType() == Operation.ResponseType.JSON){
+          //just building a JSON strinng
+          result = "{'result':'" + result +"'}";
+        }
+        Response.Builder response = Response.newBuilder();
+        response.setResultString(result);
+        if (op.hasRequestId()) {
+          response.setRequestId(op.getRequestId());
+        }
+        if (r.failed) {
+          response.setStatus(Response.Status.ERROR);
+        }
+        return response.build();
+    }
+
+    /* the result of the operation, without looking in the cache */
+    static ResultCache.Result result(Operation op) {
+        String num1 = op.getVal1();
+        String num2 = op.getVal2();
+        int baseN = op.getBase();
+        try {
+          if (op.getOperationType() == Operation.OperationType.SUB) {
+            return new ResultCache.Result(base.subtract(num1, num2, baseN), false);
+          } else if (op.getOperationType() == Operation.OperationType.MUL) {
+            return new ResultCache.Result(base.multiply(num1, num2, baseN), false);
+          } else if (op.getOperationType() == Operation.OperationType.DIV) {
+            return new ResultCache.Result(base.divide(num1, num2, baseN), false);
+          } else {
+            return new ResultCache.Result(base.add(num1, num2, baseN), false);
+          }
+        } catch (IllegalArgumentException | ArithmeticException ex) {
+          // bad digits, base or division by zero: tell the client instead of closing on it
+          return new ResultCache.Result("Error: " + ex.getMessage(), true);
+        }
+    }
+
+    private static String sign(Operation op) {
+        switch (op.getOperationType()) {
+          case SUB: return " - ";
+          case MUL: return " * ";
+          case DIV: return " / ";
+          default:  return " + ";
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.*;
+
+/**
+ * Binary frame format that peers can use instead of one JSON string per line.
+ *
+ * Every frame is: [int length][byte type][payload]   (length counts the type byte plus the payload)
+ * - JSON:    payload is a UTF-8 JSON string, used for everything that is not a chat message (join, delta, ...)
+ * - NAME:    payload is [int id][UTF-8 username], tells the other side which id stands for which username
+ * - MESSAGE: payload is [int id of username][UTF-8 message]
+ *
+ * - BATCH:   payload is several of the frames above one after the other, so many small messages become one write
+ *
+ * Usernames are only sent once per connection (NAME), after that a chat message just carries the 4 byte id.
+ * So the dictionary lives as long as the connection, the Writer and the Reader on both ends keep their own copy.
+ */
+
+public class Frames {
+	public static final byte JSON = 1;
+	public static final byte NAME = 2;
+	public static final byte MESSAGE = 3;
+	public static final byte BATCH = 4;
+
+	// we do not accept anything larger, a broken or evil peer should not make us allocate gigabytes
+	public static final int MAX_FRAME = 1 << 20;
+
+	/**
+	 * Reads one line (up to '\n') byte by byte. Used for the hello at the start of a connection, since we do not know yet
+	 * if the rest of the stream is text or frames we cannot put a BufferedReader on it that might read too far.
+	 *
+	 * @return the line without line ending or null if the stream ended before anything was read
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n'){
+			if (line.size() > MAX_FRAME){
+				throw new IOException("Line too long");
+			}
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0){
+			return null;
+		}
+		String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	/**
+	 * What we read from the other side, either a chat message (username and message set) or a JSON request (json set)
+	 */
+	public static class Frame {
+		public byte type;
+		public String username;
+		public String message;
+		public JSONObject json;
+
+		public boolean isMessage(){
+			return type == MESSAGE;
+		}
+	}
+
+	/**
+	 * Something we want to send, either a chat message (username and message) or a JSON request (json)
+	 */
+	public static class Outgoing {
+		public String username;
+		public String message;
+		public String json;
+
+		public static Outgoing chat(String username, String message){
+			Outgoing o = new Outgoing();
+			o.username = username;
+			o.message = message;
+			return o;
+		}
+
+		public static Outgoing json(String json){
+			Outgoing o = new Outgoing();
+			o.json = json;
+			return o;
+		}
+	}
+
+	/**
+	 * Writes frames for one connection. Not thread safe, the connection that owns it has to synchronize.
+	 */
+	public static class Writer {
+		private DataOutputStream out;
+		private Map<String, Integer> names = new HashMap<String, Integer>();
+
+		public Writer(OutputStream out){
+			this.out = new DataOutputStream(out);
+		}
+
+		public void writeJson(String json) throws IOException {
+			byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(1 + bytes.length);
+			out.writeByte(JSON);
+			out.write(bytes);
+		}
+
+		public void writeMessage(String username, String message) throws IOException {
+			Integer id = names.get(username);
+			if (id == null){
+				// first message of this user on this connection, tell the other side the name once
+				id = names.size();
+				names.put(username, id);
+				byte[] name = username.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(1 + 4 + name.length);
+				out.writeByte(NAME);
+				out.writeInt(id);
+				out.write(name);
+			}
+			byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(1 + 4 + bytes.length);
+			out.writeByte(MESSAGE);
+			out.writeInt(id);
+			out.write(bytes);
+		}
+
+		public void write(Outgoing o) throws IOException {
+			if (o.json != null){
+				writeJson(o.json);
+			} else {
+				writeMessage(o.username, o.message);
+			}
+		}
+
+		/**
+		 * Writes all of them in one BATCH frame, the other side unpacks it again
+		 */
+		public void writeBatch(List<Outgoing> batch) throws IOException {
+			if (batch.size() == 1){
+				write(batch.get(0));
+				return;
+			}
+			// write the frames into a buffer first so we know how long the batch is
+			DataOutputStream real = out;
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			out = new DataOutputStream(buf);
+			try {
+				for (Outgoing o : batch){
+					write(o);
+				}
+			} finally {
+				out = real;
+			}
+			if (1 + buf.size() > MAX_FRAME){
+				// too big for one frame, the frames in the buffer are fine on their own so just send them like that
+				buf.writeTo(out);
+				return;
+			}
+			out.writeInt(1 + buf.size());
+			out.writeByte(BATCH);
+			buf.writeTo(out);
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads frames of one connection, NAME frames are handled in here and never returned and BATCH frames are unpacked.
+	 */
+	public static class Reader {
+		private DataInputStream in;
+		private Map<Integer, String> names = new HashMap<Integer, String>();
+		private Deque<Frame> unpacked = new ArrayDeque<Frame>(); // frames of the last batch that were not returned yet
+
+		public Reader(InputStream in){
+			this.in = new DataInputStream(in);
+		}
+
+		/**
+		 * Blocks until the next JSON or MESSAGE frame arrived
+		 *
+		 * @return the frame or null if the other side closed the connection
+		 */
+		public Frame read() throws IOException {
+			while (unpacked.isEmpty()) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return null;
+				}
+				if (length < 1 || length > MAX_FRAME){
+					throw new IOException("Invalid frame length " + length);
+				}
+				byte type = in.readByte();
+				byte[] payload = new byte[length - 1];
+				in.readFully(payload);
+
+				if (type == BATCH){
+					DataInputStream batch = new DataInputStream(new ByteArrayInputStream(payload));
+					while (batch.available() > 0){
+						int innerLength = batch.readInt();
+						if (innerLength < 1 || innerLength > batch.available()){
+							throw new IOException("Invalid frame length in batch " + innerLength);
+						}
+						byte innerType = batch.readByte();
+						byte[] innerPayload = new byte[innerLength - 1];
+						batch.readFully(innerPayload);
+						if (innerType == BATCH){
+							throw new IOException("Batch inside a batch");
+						}
+						decode(innerType, innerPayload);
+					}
+				} else {
+					decode(type, payload);
+				}
+			}
+			return unpacked.poll();
+		}
+
+		// turns one frame into a Frame for the caller, NAME frames only update the dictionary
+		private void decode(byte type, byte[] payload) throws IOException {
+			Frame frame = new Frame();
+			frame.type = type;
+			if (type == JSON){
+				frame.json = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+				unpacked.add(frame);
+			} else if (type == NAME){
+				names.put(readInt(payload), new String(payload, 4, payload.length - 4, StandardCharsets.UTF_8));
+			} else if (type == MESSAGE){
+				frame.username = names.get(readInt(payload));
+				if (frame.username == null){
+					throw new IOException("Message for unknown username id " + readInt(payload));
+				}
+				frame.message = new String(payload, 4, payload.length - 4, StandardCharsets.UTF_8);
+				unpacked.add(frame);
+			} else {
+				throw new IOException("Unknown frame type " + type);
+			}
+		}
+
+		private static int readInt(byte[] b) throws IOException {
+			if (b.length < 4){
+				throw new IOException("Frame too short");
+			}
+			return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+		}
+	}
+}
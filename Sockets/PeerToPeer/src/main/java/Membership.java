@@ -0,0 +1,228 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.*;
+
+/**
+ * Holds the peers this peer knows about together with a version number.
+ *
+ * Instead of sending the whole peer list around every time someone joins, the leader
+ * counts up the version for every change and only sends out a small delta
+ * {'type': 'delta', 'version': 5, 'op': 'add', 'peer': 'host:port'}
+ * A peer that joins gets a full snapshot once (the list plus the version it belongs to) and after that only deltas.
+ * If a peer sees a version that is more than one ahead of its own it missed something and can ask the leader
+ * for everything since its own version (catchup).
+ *
+ * All methods are synchronized since the ServerTasks (one thread per connection) and the Peer itself use this at the same time.
+ */
+
+public class Membership {
+	// how many deltas the leader keeps around for peers that want to catch up, older ones get a snapshot instead
+	public static final int MAX_LOG = 1000;
+
+	private Map<String, SocketInfo> peers = new LinkedHashMap<String, SocketInfo>();
+	private Deque<JSONObject> log = new ArrayDeque<JSONObject>(); // last deltas, oldest first
+	private TreeMap<Long, JSONObject> pending = new TreeMap<Long, JSONObject>(); // deltas that arrived too early
+	private long version = 0;
+	private SocketInfo self;
+
+	public Membership(SocketInfo self){
+		this.self = self;
+	}
+
+	public synchronized long getVersion(){
+		return version;
+	}
+
+	public synchronized int size(){
+		return peers.size();
+	}
+
+	// copy of the current peers so callers can loop over it without holding the lock
+	public synchronized List<SocketInfo> getPeers(){
+		return new ArrayList<SocketInfo>(peers.values());
+	}
+
+	/**
+	 * Adds a peer only locally, the version does not change (e.g. a pawn adding the leader)
+	 */
+	public synchronized void addLocal(SocketInfo s){
+		if (!isSelf(s)){
+			peers.put(s.toString(), s);
+		}
+	}
+
+	/**
+	 * Removes a peer only locally, the version does not change (e.g. a pawn that cannot reach a peer)
+	 */
+	public synchronized void removeLocal(SocketInfo s){
+		peers.remove(s.toString());
+	}
+
+	/**
+	 * Used by the leader: adds the peer, counts the version up and returns the delta that should be sent to everyone.
+	 * Returns null if the peer was already known, then nothing has to be sent.
+	 */
+	public synchronized JSONObject add(SocketInfo s){
+		if (isSelf(s) || peers.containsKey(s.toString())){
+			return null;
+		}
+		peers.put(s.toString(), s);
+		return record("add", s);
+	}
+
+	/**
+	 * Used by the leader: removes the peer, counts the version up and returns the delta that should be sent to everyone.
+	 * Returns null if the peer was not known.
+	 */
+	public synchronized JSONObject remove(SocketInfo s){
+		if (peers.remove(s.toString()) == null){
+			return null;
+		}
+		return record("remove", s);
+	}
+
+	/**
+	 * Full list of peers together with the version it belongs to, this is what a joining peer gets
+	 * {'type': 'snapshot', 'version': 5, 'list': ['host1:port1', 'host2:port2']}
+	 */
+	public synchronized JSONObject snapshot(){
+		JSONArray list = new JSONArray();
+		for (String p : peers.keySet()){
+			list.put(p);
+		}
+		JSONObject json = new JSONObject();
+		json.put("type", "snapshot");
+		json.put("version", version);
+		json.put("list", list);
+		return json;
+	}
+
+	/**
+	 * Takes over a snapshot we got from the leader. Peers we already know are kept (e.g. the leader itself).
+	 */
+	public synchronized void loadSnapshot(JSONObject json){
+		JSONArray list = json.getJSONArray("list");
+		for (int i = 0; i < list.length(); i++){
+			addLocal(parse(list.getString(i)));
+		}
+		version = json.getLong("version");
+		// anything that was waiting and is now covered by the snapshot is not needed anymore
+		pending.headMap(version, true).clear();
+		drainPending();
+	}
+
+	/**
+	 * Applies a delta from the leader.
+	 * Old deltas (version we already have) are ignored, the next one is applied right away and
+	 * anything further ahead is kept until the missing ones arrived.
+	 *
+	 * @return false if there is a gap, then the caller should ask the leader for a catchup
+	 */
+	public synchronized boolean applyDelta(JSONObject delta){
+		long v = delta.getLong("version");
+		if (v <= version){
+			return true;
+		}
+		if (v > version + 1){
+			pending.put(v, delta);
+			return false;
+		}
+		apply(delta);
+		drainPending();
+		return pending.isEmpty();
+	}
+
+	/**
+	 * What the leader answers to a catchup request: all deltas after the given version.
+	 * If we do not have all of them anymore (log was trimmed) the peer just gets a snapshot.
+	 * {'type': 'catchup', 'version': 9, 'deltas': [ ... ]}
+	 */
+	public synchronized JSONObject since(long from){
+		if (from > version){
+			// peer thinks it is ahead of us, something is off so start over
+			return snapshot();
+		}
+		if (from < version && (log.isEmpty() || log.peekFirst().getLong("version") > from + 1)){
+			return snapshot();
+		}
+		JSONArray deltas = new JSONArray();
+		for (JSONObject d : log){
+			if (d.getLong("version") > from){
+				deltas.put(d);
+			}
+		}
+		JSONObject json = new JSONObject();
+		json.put("type", "catchup");
+		json.put("version", version);
+		json.put("deltas", deltas);
+		return json;
+	}
+
+	/**
+	 * Applies an answer to a catchup request, which is either a snapshot or a list of deltas
+	 */
+	public synchronized void applyCatchup(JSONObject json){
+		if (json.getString("type").equals("snapshot")){
+			loadSnapshot(json);
+			return;
+		}
+		JSONArray deltas = json.getJSONArray("deltas");
+		for (int i = 0; i < deltas.length(); i++){
+			applyDelta(deltas.getJSONObject(i));
+		}
+	}
+
+	/**
+	 * Turns "host:port" into a SocketInfo
+	 */
+	public static SocketInfo parse(String hostPort){
+		String[] parts = hostPort.split(":");
+		return new SocketInfo(parts[0], Integer.valueOf(parts[1]));
+	}
+
+	// counts the version up and remembers the delta so late peers can catch up
+	private JSONObject record(String op, SocketInfo s){
+		version++;
+		JSONObject delta = new JSONObject();
+		delta.put("type", "delta");
+		delta.put("version", version);
+		delta.put("op", op);
+		delta.put("peer", s.toString());
+		log.addLast(delta);
+		if (log.size() > MAX_LOG){
+			log.removeFirst();
+		}
+		return delta;
+	}
+
+	private void apply(JSONObject delta){
+		SocketInfo s = parse(delta.getString("peer"));
+		if (delta.getString("op").equals("add")){
+			addLocal(s);
+		} else {
+			removeLocal(s);
+		}
+		version = delta.getLong("version");
+	}
+
+	// applies the deltas that waited for a missing one as long as there is no gap
+	private void drainPending(){
+		while (!pending.isEmpty() && pending.firstKey() <= version + 1){
+			JSONObject next = pending.pollFirstEntry().getValue();
+			if (next.getLong("version") == version + 1){
+				apply(next);
+			}
+		}
+	}
+
+	// basic check to not add ourself, since then we would send every message to ourself as well
+	private boolean isSelf(SocketInfo s){
+		return (s.getHost().equals("localhost") || s.getHost().equals(self.getHost())) && s.getPort() == self.getPort();
+	}
+}
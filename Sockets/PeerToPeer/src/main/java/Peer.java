@@ -2,7 +2,10 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.io.PrintWriter;
 import org.json.*;
@@ -22,15 +25,25 @@ public class Peer {
 	private BufferedReader bufferedReader;
 	private ServerThread serverThread;
 
-	private Set<SocketInfo> peers = new HashSet<SocketInfo>();
+	private Membership peers; // all peers we know about plus the version of that list
+	private Map<SocketInfo, PeerConnection> connections = new ConcurrentHashMap<SocketInfo, PeerConnection>(); // open connection to each peer we send to
 	private boolean leader = false;
 	private SocketInfo leaderSocket;
+	private Listener listener = null; // null means we just print the chat messages
+
+	/**
+	 * Gets every chat message this peer receives, e.g. the Simulation uses it to measure how long messages take
+	 */
+	public interface Listener {
+		void received(String username, String message);
+	}
 
 	
 	public Peer(BufferedReader bufReader, String username,ServerThread serverThread){
 		this.username = username;
 		this.bufferedReader = bufReader;
 		this.serverThread = serverThread;
+		this.peers = new Membership(new SocketInfo(serverThread.getHost(), serverThread.getPort()));
 	}
 
 	public void setLeader(boolean leader, SocketInfo leaderSocket){
@@ -43,35 +56,106 @@ public class Peer {
 	}
 
 	public void addPeer(SocketInfo si){
-		peers.add(si);
+		peers.addLocal(si);
 	}
-	
-	// get a string of all peers that this peer knows
-	public String getPeers(){
-		String s = "";
-		for (SocketInfo p: peers){
-			s = s +  p.getHost() + ":" + p.getPort() + " ";
+
+	public Membership getMembership(){
+		return peers;
+	}
+
+	public String getUsername(){
+		return username;
+	}
+
+	public void setListener(Listener listener){
+		this.listener = listener;
+	}
+
+	/**
+	 * Called by the ServerTasks for every chat message that arrives
+	 */
+	public void received(String username, String message){
+		if (listener != null){
+			listener.received(username, message);
+		} else {
+			System.out.println("[" + username + "]: " + message);
+		}
+	}
+
+	// number of connections we keep open to send to other peers
+	public int getConnectionCount(){
+		return connections.size();
+	}
+
+	/**
+	 * Closes all connections we opened to other peers, they notice that we are gone when they try to send to us
+	 */
+	public void close(){
+		for (PeerConnection c : connections.values()){
+			c.close();
 		}
-		return s; 
+		connections.clear();
 	}
 
 	/**
-	 * Adds all the peers in the list to the peers list
-	 * Only adds it if it is not the currect peer (self)
+	 * Someone wants to join. We add them to our list, the caller answers them with the snapshot (list + version) so they know
+	 * everyone we know. If we are the leader we tell everybody else only about the change (delta) and not the whole list,
+	 * that way the join messages stay small no matter how many peers there are.
 	 *
-	 * @param list String of peers in the format "host1:port1 host2:port2"
+	 * @param joining host and port of the peer that joins
+	 * @return the delta that should be pushed to all peers after the joining peer got its answer, null if there is nothing to send
+	 */
+	public JSONObject join(SocketInfo joining){
+		if (leader){
+			return peers.add(joining);
+		}
+		peers.addLocal(joining);
+		return null;
+	}
+
+	/**
+	 * Sends the leader a join, we get the list of all peers the leader knows (only this once)
 	 */
-	public void updateListenToPeers(String list) throws Exception {
-		String[] peerList = list.split(" ");
-		for (String p: peerList){
-			String[] hostPort = p.split(":");
-
-			// basic check to not add ourself, since then we would send every message to ourself as well (but maybe you want that, then you can remove this)
-			if ((hostPort[0].equals("localhost") || hostPort[0].equals(serverThread.getHost())) && Integer.valueOf(hostPort[1]) == serverThread.getPort()){
-				continue;
+	public void joinLeader(){
+		JSONObject snapshot = commLeader("{'type': 'join', 'username': '"+ username +"','ip':'" + serverThread.getHost() + "','port':'" + serverThread.getPort() + "'}");
+		if (snapshot != null){
+			peers.loadSnapshot(snapshot);
+		}
+	}
+
+	/**
+	 * We got a change of the peer list from the leader, if we missed one before we ask the leader for everything we missed
+	 */
+	public void updatePeers(JSONObject delta){
+		if (!peers.applyDelta(delta)){
+			catchUp();
+		}
+		closeRemoved();
+	}
+
+	// closes the connections to peers that are not in our list anymore
+	private void closeRemoved(){
+		Set<SocketInfo> current = new HashSet<SocketInfo>(peers.getPeers());
+		for (SocketInfo s : connections.keySet()){
+			if (!current.contains(s)){
+				PeerConnection c = connections.remove(s);
+				if (c != null){
+					c.close();
+				}
 			}
-			SocketInfo s = new SocketInfo(hostPort[0], Integer.valueOf(hostPort[1]));
-			peers.add(s);
+		}
+	}
+
+	/**
+	 * Asks the leader for all changes since the version we have
+	 */
+	public void catchUp(){
+		JSONObject request = new JSONObject();
+		request.put("type", "catchup");
+		request.put("from", peers.getVersion());
+		JSONObject json = commLeader(request.toString());
+		if (json != null){
+			peers.applyCatchup(json);
 		}
 	}
 	
@@ -88,7 +172,7 @@ public class Peer {
 					System.out.println("bye, see you next time");
 					break;
 				} else {
-					pushMessage("{'type': 'message', 'username': '"+ username +"','message':'" + message + "'}");
+					pushChat(message);
 				}	
 			}
 			System.exit(0);
@@ -103,12 +187,13 @@ public class Peer {
 
 
 	/**
-	 * Send a message only to the leader 
+	 * Send a message only to the leader and wait for the answer
 	 *
 	 * @param message String that peer wants to send to the leader node
+	 * @return the answer of the leader or null if we could not reach it
 	 * this might be an interesting point to check if one cannot connect that a leader election is needed
 	 */
-	public void commLeader(String message) {
+	public JSONObject commLeader(String message) {
 		try {
 			BufferedReader reader = null; 
 				Socket socket = null;
@@ -122,7 +207,7 @@ public class Peer {
 					} else {
 						System.out.println("Could not connect to " + leaderSocket.getHost() + ":" + leaderSocket.getPort());
 					}
-					return; // returning since we cannot connect or something goes wrong the rest will not work. 
+					return null; // returning since we cannot connect or something goes wrong the rest will not work. 
 				}
 
 				PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
@@ -130,51 +215,61 @@ public class Peer {
 
 				JSONObject json = new JSONObject(reader.readLine());
 				System.out.println("     Received from server " + json);
-				String list = json.getString("list");
-				updateListenToPeers(list); // when we get a list of all other peers that the leader knows we update them
+				socket.close();
+				return json;
 
 		} catch(Exception e) {
 			e.printStackTrace();
 		}
+		return null;
 	}
 
 /**
 	 * Send a message to every peer in the peers list, if a peer cannot be reached remove it from list
 	 *
-	 * @param message String that peer wants to send to other peers
+	 * @param message JSON String that peer wants to send to other peers
 	 */
 	public void pushMessage(String message) {
+		send(message, null);
+	}
+
+	/**
+	 * Send a chat message to every peer, over binary frames this does not need any JSON
+	 *
+	 * @param message what the user typed
+	 */
+	public void pushChat(String message) {
+		send(null, message);
+	}
+
+	// sends either the JSON or the chat message over the open connection to each peer
+	private void send(String json, String chat) {
 		try {
 			System.out.println("     Trying to send to peers: " + peers.size());
 
 			Set<SocketInfo> toRemove = new HashSet<SocketInfo>();
-			BufferedReader reader = null; 
 			int counter = 0;
-			for (SocketInfo s : peers) {
-				Socket socket = null;
-				try {
-					socket = new Socket(s.getHost(), s.getPort());
-					reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				} catch (Exception c) {
-					if (socket != null) {
-						socket.close();
-					} else {
-						System.out.println("  Could not connect to " + s.getHost() + ":" + s.getPort());
-						System.out.println("  Removing that socketInfo from list");
-						toRemove.add(s);
-						continue;
-					}
-					System.out.println("     Issue: " + c);
+			for (SocketInfo s : peers.getPeers()) {
+				if (deliver(s, json, chat) || deliver(s, json, chat)) { // second try on a fresh connection if the old one broke
+					counter++;
+				} else {
+					System.out.println("  Could not connect to " + s.getHost() + ":" + s.getPort());
+					System.out.println("  Removing that socketInfo from list");
+					toRemove.add(s);
 				}
-
-				PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-				out.println(message);
-				counter++;
-				socket.close();
 		     }
+		    // the leader tells everyone that the peer is gone, everyone else just forgets about it
 		    for (SocketInfo s: toRemove){
-		    	peers.remove(s);
+		    	if (leader){
+		    		JSONObject delta = peers.remove(s);
+		    		if (delta != null){
+		    			pushMessage(delta.toString());
+		    		}
+		    	} else {
+		    		peers.removeLocal(s);
+		    	}
 		    }
+		    closeRemoved();
 
 		    System.out.println("     Message was sent to " + counter + " peers");
 
@@ -183,6 +278,46 @@ public class Peer {
 		}
 	}
 
+	// uses the open connection to that peer or opens one, returns false if sending did not work
+	private boolean deliver(SocketInfo s, String json, String chat) {
+		PeerConnection c = connections.get(s);
+		List<Frames.Outgoing> unsent = null;
+		if (c != null && c.isClosed() && connections.remove(s, c)) {
+			// the connection broke, what it could not send goes first over the new one
+			unsent = c.takeUnsent();
+			c = null;
+		}
+		try {
+			if (c == null) {
+				c = PeerConnection.open(s, new SocketInfo(serverThread.getHost(), serverThread.getPort()));
+				PeerConnection other = connections.putIfAbsent(s, c);
+				if (other != null) { // another thread connected at the same time, use that one
+					c.close();
+					c = other;
+				}
+				if (unsent != null) {
+					c.resend(unsent);
+					unsent = null;
+				}
+			}
+			if (chat != null) {
+				c.sendChat(username, chat);
+			} else {
+				c.sendJson(json);
+			}
+			return true;
+		} catch (Exception e) {
+			if (c != null) {
+				c.close();
+				connections.remove(s, c);
+			}
+			if (unsent != null && !unsent.isEmpty()) {
+				System.out.println("  " + unsent.size() + " messages to " + s.getHost() + ":" + s.getPort() + " were lost, could not connect again");
+			}
+			return false;
+		}
+	}
+
 	/**
 	 * Main method saying hi and also starting the Server thread where other peers can subscribe to listen
 	 *
@@ -222,7 +357,7 @@ public class Peer {
 			peer.setLeader(false, s);
 
 			// send message to leader that we want to join
-			peer.commLeader("{'type': 'join', 'username': '"+ username +"','ip':'" + serverThread.getHost() + "','port':'" + serverThread.getPort() + "'}");
+			peer.joinLeader();
 
 		}
 		serverThread.setPeer(peer);
@@ -0,0 +1,266 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+
+/**
+ * A connection to another peer that we keep open and send all our messages over (instead of opening a new socket per message).
+ *
+ * When the connection is opened we send a hello and ask if the other side can do the binary frames (see Frames):
+ *   {"type": "hello", "protocols": ["binary", "json"]}
+ * A peer that can do it answers {"type": "hello", "protocol": "binary"} and from then on only frames are sent.
+ * A peer that only knows JSON does not understand the hello and never answers it (the old ServerTask does not even close
+ * the connection), so we only wait peer.hello.timeout ms (default 1000) for the answer, then connect again and just send
+ * one JSON string per line like before. Such a peer is remembered, the next connection to it goes straight to JSON.
+ * Setting the system property peer.binary=false turns the binary format off for this peer.
+ *
+ * Sending does not write to the socket right away, messages go into a queue and a writer thread sends them.
+ * When many messages come in at once (pasted text, bots) the writer takes everything that is waiting, waits a little bit
+ * longer (linger) for more and sends them together as one BATCH frame with one flush, instead of lots of tiny writes.
+ * - peer.batch.max: most messages in one batch (default 64, 1 turns batching off)
+ * - peer.batch.linger: ms to wait for more messages before sending (default 1)
+ * - peer.send.timeout: ms a send waits for room in the queue (default 1000), then the peer counts as stalled and the
+ *   connection is closed, so one slow peer does not hold up sending to the others
+ * When the connection breaks, the messages the writer could not send are kept, the Peer sends them first on the new
+ * connection (see takeUnsent). close() stops the writer thread right away, messages still in the queue are not sent and
+ * their number is printed.
+ */
+
+public class PeerConnection {
+	public static final boolean BINARY_ENABLED = Boolean.parseBoolean(System.getProperty("peer.binary", "true"));
+	public static final int HELLO_TIMEOUT = Integer.getInteger("peer.hello.timeout", 1000); // ms, a new peer answers right away
+	public static final int MAX_BATCH = Integer.getInteger("peer.batch.max", 64);
+	public static final long LINGER = Long.getLong("peer.batch.linger", 1); // ms
+	public static final int QUEUE_SIZE = 10000; // if the peer cannot keep up sending waits when this many are waiting
+	public static final long SEND_TIMEOUT = Long.getLong("peer.send.timeout", 1000); // ms
+
+	private SocketInfo peer;
+	private Socket socket;
+	private boolean binary;
+	private Frames.Writer frames; // used if binary
+	private Writer lines; // used if JSON
+	// peers that did not answer the hello, we do not wait for them again
+	private static final Set<SocketInfo> jsonOnly = ConcurrentHashMap.newKeySet();
+
+	private BlockingQueue<Frames.Outgoing> queue = new LinkedBlockingQueue<Frames.Outgoing>(QUEUE_SIZE);
+	private Thread writer;
+	private volatile boolean closed = false;
+	private List<Frames.Outgoing> unsent = new ArrayList<Frames.Outgoing>(); // kept by the writer when the connection broke
+
+	private PeerConnection(SocketInfo peer){
+		this.peer = peer;
+	}
+
+	/**
+	 * Connects to the peer and agrees on the format
+	 *
+	 * @throws IOException if we cannot connect to the peer at all
+	 */
+	public static PeerConnection open(SocketInfo peer) throws IOException {
+		return open(peer, null);
+	}
+
+	/**
+	 * Like open(peer), the writer thread is named after the peer that owns the connection
+	 */
+	public static PeerConnection open(SocketInfo peer, SocketInfo owner) throws IOException {
+		PeerConnection c = new PeerConnection(peer);
+		if (!BINARY_ENABLED || jsonOnly.contains(peer) || !c.tryBinary()){
+			c.socket = new Socket(peer.getHost(), peer.getPort());
+			c.socket.setTcpNoDelay(true);
+			c.lines = new BufferedWriter(new OutputStreamWriter(c.socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+		c.writer = new Thread(c::writeLoop, (owner == null) ? "writer-" + peer : owner.threadName("writer->" + peer));
+		c.writer.setDaemon(true);
+		c.writer.start();
+		return c;
+	}
+
+	// sends the hello, returns true if the other side agreed to binary frames
+	private boolean tryBinary() throws IOException {
+		socket = new Socket(peer.getHost(), peer.getPort());
+		socket.setTcpNoDelay(true);
+		OutputStream out = socket.getOutputStream();
+		InputStream in = socket.getInputStream();
+
+		JSONObject hello = new JSONObject();
+		hello.put("type", "hello");
+		hello.put("protocols", new JSONArray().put("binary").put("json"));
+		out.write((hello.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+
+		// do not wait forever for an answer, a peer that does not answer just gets JSON
+		String answer = null;
+		socket.setSoTimeout(HELLO_TIMEOUT);
+		try {
+			answer = Frames.readLine(in);
+		} catch (IOException e) {
+			// connection was reset or timed out, the other side did not like the hello
+		}
+		socket.setSoTimeout(0);
+		if (answer != null && new JSONObject(answer).optString("protocol").equals("binary")){
+			binary = true;
+			frames = new Frames.Writer(new BufferedOutputStream(out));
+			return true;
+		}
+		socket.close();
+		jsonOnly.add(peer);
+		return false;
+	}
+
+	public boolean isBinary(){
+		return binary;
+	}
+
+	public SocketInfo getPeer(){
+		return peer;
+	}
+
+	public boolean isClosed(){
+		return closed;
+	}
+
+	/**
+	 * Sends a JSON request (join, delta, ...)
+	 *
+	 * @throws IOException if the connection broke, then the caller should open a new one
+	 */
+	public void sendJson(String json) throws IOException {
+		enqueue(Frames.Outgoing.json(json));
+	}
+
+	/**
+	 * Sends a chat message, in binary the username is only sent the first time
+	 *
+	 * @throws IOException if the connection broke, then the caller should open a new one
+	 */
+	public void sendChat(String username, String message) throws IOException {
+		enqueue(Frames.Outgoing.chat(username, message));
+	}
+
+	private void enqueue(Frames.Outgoing o) throws IOException {
+		if (closed){
+			throw new IOException("Connection to " + peer + " is closed");
+		}
+		try {
+			if (!queue.offer(o, SEND_TIMEOUT, TimeUnit.MILLISECONDS)){
+				close();
+				throw new IOException(peer + " does not keep up, " + QUEUE_SIZE + " messages waiting, disconnected");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sending to " + peer);
+		}
+	}
+
+	/**
+	 * Queues messages that a broken connection to the same peer could not send, before anything else is sent
+	 */
+	public void resend(List<Frames.Outgoing> messages) throws IOException {
+		for (Frames.Outgoing o : messages){
+			enqueue(o);
+		}
+	}
+
+	/**
+	 * The messages that were not sent because the connection broke, in order, to be sent again with resend.
+	 * Only for a closed connection, waits for the writer thread to end.
+	 */
+	public List<Frames.Outgoing> takeUnsent(){
+		try {
+			writer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<Frames.Outgoing> ret = unsent;
+		queue.drainTo(ret); // a send that came in while the writer was ending
+		unsent = new ArrayList<Frames.Outgoing>();
+		return ret;
+	}
+
+	// runs in the writer thread: takes what is in the queue, waits up to LINGER for more and writes it all at once
+	private void writeLoop(){
+		List<Frames.Outgoing> batch = new ArrayList<Frames.Outgoing>();
+		boolean broken = false;
+		try {
+			while (!closed) {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER);
+				while (batch.size() < MAX_BATCH) {
+					Frames.Outgoing next = queue.poll();
+					if (next == null) {
+						long left = deadline - System.nanoTime();
+						if (left <= 0 || (next = queue.poll(left, TimeUnit.NANOSECONDS)) == null) {
+							break;
+						}
+					}
+					batch.add(next);
+				}
+				write(batch);
+				batch.clear();
+			}
+		} catch (Exception e) {
+			// connection broke or was closed (interrupted while waiting), the next send notices and the Peer connects again
+			if (!closed){
+				broken = true;
+			}
+			close();
+		}
+		List<Frames.Outgoing> left = new ArrayList<Frames.Outgoing>(batch);
+		queue.drainTo(left);
+		if (broken){
+			unsent = left;
+		} else if (!left.isEmpty()){
+			System.out.println("  " + left.size() + " messages to " + peer + " were not sent, connection closed");
+		}
+	}
+
+	private void write(List<Frames.Outgoing> batch) throws IOException {
+		if (binary){
+			frames.writeBatch(batch);
+			frames.flush();
+		} else {
+			// no batch frame in JSON, but all lines still go out with one flush
+			for (Frames.Outgoing o : batch){
+				lines.write(o.json != null ? o.json : chatJson(o.username, o.message));
+				lines.write("\n");
+			}
+			lines.flush();
+		}
+	}
+
+	public void close(){
+		closed = true;
+		writer.interrupt(); // it may be waiting for the next message, that never comes now
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing we can do, we wanted it closed anyway
+		}
+	}
+
+	/**
+	 * The chat message in the old JSON format {"type": "message", "username": ..., "message": ...}
+	 */
+	public static String chatJson(String username, String message){
+		JSONObject json = new JSONObject();
+		json.put("type", "message");
+		json.put("username", username);
+		json.put("message", message);
+		return json.toString();
+	}
+}
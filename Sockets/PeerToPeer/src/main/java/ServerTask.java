@@ -1,64 +1,138 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 
 import org.json.*;
 
 /**
  * This is the class that handles communication with a peer/client that has connected to use
  * and wants something from us
- * 
+ *
  */
 
 public class ServerTask extends Thread {
-	private BufferedReader bufferedReader;
+	private InputStream in;
 	private Peer peer = null; // so we have access to the peer that belongs to that thread
-	private PrintWriter out = null;
+	private PrintWriter out = null; // used if the other side talks JSON
+	private Frames.Writer frameOut = null; // used if the other side talks binary frames (see Frames)
 	private Socket socket = null;
-	
+
 	// Init with socket that is opened and the peer
 	public ServerTask(Socket socket, Peer peer) throws IOException {
-		bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		out = new PrintWriter(socket.getOutputStream(), true);
+		in = new BufferedInputStream(socket.getInputStream());
 		this.peer = peer;
 		this.socket = socket;
 	}
-	
+
 	// basically wait for an input, right now we can only handle a join request
 	// and a message
 	// More requests will be needed to make everything work
-	// You can enhance this or totally change it, up to you. 
+	// You can enhance this or totally change it, up to you.
 	// I used simple JSON here, you can use your own protocol, use protobuf, anything you want
-	// in here this is not done especially pretty, I just use a PrintWriter and BufferedReader for simplicity
+	// The first line tells us which format the other side wants: a hello asks for the binary frames,
+	// anything else is a normal JSON request and we stay with one JSON string per line
 	public void run() {
-		while (true) {
-			try {
-			    JSONObject json = new JSONObject(bufferedReader.readLine());
-
-			    if (json.getString("type").equals("join")){
-			    	System.out.println("     " + json); // just to show the json
+		try {
+			String first = Frames.readLine(in);
+			if (first == null){
+				return;
+			}
+			JSONObject json = new JSONObject(first);
+			if (json.getString("type").equals("hello")){
+				boolean binary = false;
+				JSONArray protocols = json.optJSONArray("protocols");
+				for (int i = 0; protocols != null && i < protocols.length(); i++){
+					if (PeerConnection.BINARY_ENABLED && protocols.getString(i).equals("binary")){
+						binary = true;
+					}
+				}
+				PrintWriter helloOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+				helloOut.println("{\"type\": \"hello\", \"protocol\": \"" + (binary ? "binary" : "json") + "\"}");
+				if (binary){
+					frameOut = new Frames.Writer(new BufferedOutputStream(socket.getOutputStream()));
+					readFrames();
+					return;
+				}
+				out = helloOut;
+			} else {
+				out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+				handle(json);
+			}
+			readLines();
+		} catch (Exception e) {
+			interrupt();
+		}
+	}
 
-			    	System.out.println("     " + json.getString("username") + " wants to join the network");
-			    	peer.updateListenToPeers(json.getString("ip") + ":" + json.getInt("port"));
-			    	out.println(("{'type': 'join', 'list': '"+ peer.getPeers() +"'}"));
+	// one JSON string per line until the other side closes the connection
+	private void readLines() throws Exception {
+		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = bufferedReader.readLine()) != null) {
+			handle(new JSONObject(line));
+		}
+	}
 
-			    	if (peer.isLeader()){
-			    		peer.pushMessage(json.toString());
-			    	}
-			    	// TODO: should make sure that all peers that the leader knows about also get the info about the new peer joining
-			    	// so they can add that peer to the list
-			    } else {
-			    	System.out.println("[" + json.getString("username")+"]: " + json.getString("message"));
-			    }
-			    
-			    
-			} catch (Exception e) {
-				interrupt();
-				break;
+	// binary frames until the other side closes the connection, chat messages come without JSON
+	private void readFrames() throws Exception {
+		Frames.Reader reader = new Frames.Reader(in);
+		Frames.Frame frame;
+		while ((frame = reader.read()) != null) {
+			if (frame.isMessage()){
+				peer.received(frame.username, frame.message);
+			} else {
+				handle(frame.json);
 			}
 		}
 	}
 
+	private void handle(JSONObject json) throws Exception {
+	    if (json.getString("type").equals("join")){
+	    	System.out.println("     " + json); // just to show the json
+
+	    	System.out.println("     " + json.getString("username") + " wants to join the network");
+	    	// the joining peer gets the full list once, everyone else only gets the change (see Peer.join)
+	    	// answer first, the joining peer only starts listening for other peers after it got the list
+	    	JSONObject delta = peer.join(new SocketInfo(json.getString("ip"), json.getInt("port")));
+	    	reply(peer.getMembership().snapshot().toString());
+	    	if (delta != null){
+	    		peer.pushMessage(delta.toString());
+	    	}
+	    } else if (json.getString("type").equals("delta")){
+	    	// change of the peer list sent by the leader
+	    	peer.updatePeers(json);
+	    } else if (json.getString("type").equals("catchup")){
+	    	// a peer missed some changes and wants everything after the version it has
+	    	reply(peer.getMembership().since(json.getLong("from")).toString());
+	    } else {
+	    	peer.received(json.getString("username"), json.getString("message"));
+	    }
+	}
+
+	// closes the connection, run() then ends since reading fails
+	public void close(){
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	// answer in the same format the other side talks to us
+	private void reply(String json) throws IOException {
+		if (frameOut != null){
+			frameOut.writeJson(json);
+			frameOut.flush();
+		} else {
+			out.println(json);
+		}
+	}
+
 }
@@ -4,6 +4,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -17,6 +18,7 @@ public class ServerThread extends Thread{
 	private ServerSocket serverSocket; // Socket we listen on
 	private SocketInfo socket; // socket info of our own socket (host,port)
 	private Peer peer = null; // throwing in the peer so we can call methods on it
+	private Set<ServerTask> tasks = ConcurrentHashMap.newKeySet(); // one per connection other peers opened to us
 	
 	public ServerThread(String peer) throws IOException {
 		// peer has host and port, take it appart and save it SocketInfo
@@ -25,6 +27,7 @@ public class ServerThread extends Thread{
 		String host = hostPort[0];
 		System.out.println("     host: " + host);
 		socket = new SocketInfo(host, port);
+		setName(socket.threadName("server"));
 
 		// create new Socket we listen on
 		serverSocket = new ServerSocket(port);
@@ -51,10 +54,35 @@ public class ServerThread extends Thread{
 		try {
 			while (true) {
 				Socket sock = serverSocket.accept();
-				new ServerTask(sock, peer).start();
+				ServerTask task = new ServerTask(sock, peer);
+				task.setName(socket.threadName("task"));
+				tasks.add(task);
+				task.start();
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			if (!serverSocket.isClosed()) { // closing the server socket on purpose also ends up in here
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// number of ServerTasks (threads with an open connection from another peer) that are still running
+	public int getTaskCount(){
+		tasks.removeIf(t -> !t.isAlive());
+		return tasks.size();
+	}
+
+	/**
+	 * Stops listening and closes all connections other peers opened to us
+	 */
+	public void close(){
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		for (ServerTask t : tasks){
+			t.close();
 		}
 	}
 }
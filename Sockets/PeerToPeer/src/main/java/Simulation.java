@@ -0,0 +1,288 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts a whole peer network in one JVM on localhost so we do not need to open lots of terminals and type.
+ *
+ * The first peer is the leader, all others join it. Then chat messages are sent at the given rate (round robin over the peers)
+ * and optionally peers leave and new ones join while messages are sent (churn).
+ * Every message carries an id and the time it was sent, so when it arrives we know how long it took and if we got it twice.
+ * At the end we print latency percentiles, lost and duplicate messages and the threads and sockets of each peer.
+ *
+ * Run with: gradle simulate -Ppeers=10 -Prate=200 -Pseconds=10 -Pchurn=2 -q --console=plain
+ * The program exits with 1 if a message was lost or arrived twice, so it can be used to catch regressions.
+ */
+
+public class Simulation {
+	// a peer of the simulation, the same thing Peer.main sets up but without user input
+	static class SimPeer {
+		String name;
+		int port;
+		Peer peer;
+		ServerThread serverThread;
+		volatile boolean alive = true;
+		AtomicInteger received = new AtomicInteger();
+	}
+
+	// what we remember about every message we send
+	static class Sent {
+		long nanos;
+		Set<String> expected = new HashSet<String>(); // peers the sender had in its list when it sent the message
+	}
+
+	private int basePort;
+	private int nextPort;
+	private int nextName = 0;
+	private SimPeer leader;
+	private List<SimPeer> all = Collections.synchronizedList(new ArrayList<SimPeer>());
+	private Map<Integer, SimPeer> byPort = new ConcurrentHashMap<Integer, SimPeer>();
+
+	private AtomicInteger ids = new AtomicInteger();
+	private Map<Integer, Sent> sent = new ConcurrentHashMap<Integer, Sent>();
+	private Map<Integer, Set<String>> receivedBy = new ConcurrentHashMap<Integer, Set<String>>();
+	private AtomicInteger duplicates = new AtomicInteger();
+	private List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+	public Simulation(int basePort){
+		this.basePort = basePort;
+		this.nextPort = basePort;
+	}
+
+	/**
+	 * Starts a new peer on the next port, the first one becomes the leader and all others join it
+	 */
+	public SimPeer start() throws Exception {
+		SimPeer p = new SimPeer();
+		p.name = "peer" + (nextName++);
+		p.port = nextPort++;
+		p.serverThread = new ServerThread("localhost:" + p.port);
+		p.peer = new Peer(null, p.name, p.serverThread);
+		SocketInfo leaderInfo = new SocketInfo("localhost", basePort);
+		final SimPeer self = p;
+		p.peer.setListener(new Peer.Listener() {
+			public void received(String username, String message) {
+				self.received.incrementAndGet();
+				record(self, message);
+			}
+		});
+		if (leader == null) {
+			p.peer.setLeader(true, leaderInfo);
+			leader = p;
+		} else {
+			p.peer.addPeer(leaderInfo);
+			p.peer.setLeader(false, leaderInfo);
+			p.peer.joinLeader();
+		}
+		p.serverThread.setPeer(p.peer);
+		p.serverThread.start();
+		all.add(p);
+		byPort.put(p.port, p);
+		return p;
+	}
+
+	/**
+	 * The peer leaves without telling anyone, like closing the terminal
+	 */
+	public void stop(SimPeer p) {
+		p.alive = false;
+		p.serverThread.close();
+		p.peer.close();
+	}
+
+	public List<SimPeer> alive() {
+		List<SimPeer> l = new ArrayList<SimPeer>();
+		synchronized (all) {
+			for (SimPeer p : all) {
+				if (p.alive) {
+					l.add(p);
+				}
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Waits until every peer knows about every other peer
+	 */
+	public boolean awaitMembership(long timeoutMs) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMs;
+		while (System.currentTimeMillis() < end) {
+			List<SimPeer> live = alive();
+			boolean done = true;
+			for (SimPeer p : live) {
+				if (p.peer.getMembership().size() != live.size() - 1) {
+					done = false;
+				}
+			}
+			if (done) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return false;
+	}
+
+	/**
+	 * Sends one chat message from the given peer, the message is "id:time it was sent"
+	 */
+	public void send(SimPeer from) {
+		int id = ids.incrementAndGet();
+		Sent s = new Sent();
+		for (SocketInfo si : from.peer.getMembership().getPeers()) {
+			SimPeer to = byPort.get(si.getPort());
+			if (to != null) {
+				s.expected.add(to.name);
+			}
+		}
+		s.nanos = System.nanoTime();
+		sent.put(id, s);
+		from.peer.pushChat(id + ":" + s.nanos);
+	}
+
+	// called by the receiving peer for every chat message
+	private void record(SimPeer to, String message) {
+		long now = System.nanoTime();
+		String[] parts = message.split(":");
+		int id = Integer.parseInt(parts[0]);
+		long sentAt = Long.parseLong(parts[1]);
+		Set<String> got = receivedBy.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet());
+		if (!got.add(to.name)) {
+			duplicates.incrementAndGet();
+			return;
+		}
+		latencies.add(now - sentAt);
+	}
+
+	// messages that a peer should have gotten (it was in the senders list and is still there at the end) but did not
+	private int lost() {
+		Set<String> live = new HashSet<String>();
+		for (SimPeer p : alive()) {
+			live.add(p.name);
+		}
+		int lost = 0;
+		for (Map.Entry<Integer, Sent> e : sent.entrySet()) {
+			Set<String> got = receivedBy.get(e.getKey());
+			for (String name : e.getValue().expected) {
+				if (live.contains(name) && (got == null || !got.contains(name))) {
+					lost++;
+				}
+			}
+		}
+		return lost;
+	}
+
+	private static double percentile(List<Long> sorted, double p) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1))) / 1000000.0;
+	}
+
+	/**
+	 * @param args[0] number of peers
+	 * @param args[1] messages per second (all peers together)
+	 * @param args[2] seconds to send
+	 * @param args[3] how many peers leave (and new ones join) while sending
+	 * @param args[4] port of the leader, the other peers use the ports after it
+	 */
+	public static void main(String[] args) throws Exception {
+		int peers = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int churn = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+		int port = args.length > 4 ? Integer.parseInt(args[4]) : 9500;
+
+		// the peers print a lot, we only want to see the result
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		Simulation sim = new Simulation(port);
+		long startJoin = System.nanoTime();
+		for (int i = 0; i < peers; i++) {
+			sim.start();
+		}
+		boolean converged = sim.awaitMembership(10000);
+		long joinMs = (System.nanoTime() - startJoin) / 1000000;
+
+		Random random = new Random(42);
+		long total = (long) rate * seconds;
+		long interval = 1000000000L / Math.max(1, rate);
+		// more churn than messages: one peer changes before each message
+		long churnEvery = churn > 0 ? Math.max(1, total / (churn + 1)) : 0;
+		int churned = 0;
+		long begin = System.nanoTime();
+		for (long n = 0; n < total; n++) {
+			long due = begin + n * interval;
+			long wait = due - System.nanoTime();
+			if (wait > 1000000) { // sleeping is not exact below a millisecond, at high rates we just send a few at once
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+			if (churned < churn && n > 0 && n % churnEvery == 0) {
+				churned++;
+				List<SimPeer> live = sim.alive();
+				live.remove(sim.leader);
+				if (!live.isEmpty()) {
+					sim.stop(live.get(random.nextInt(live.size())));
+				}
+				sim.start();
+			}
+			List<SimPeer> live = sim.alive();
+			sim.send(live.get((int) (n % live.size())));
+		}
+		double sendSeconds = (System.nanoTime() - begin) / 1e9;
+
+		// give the last messages some time to arrive
+		Thread.sleep(2000);
+
+		List<Long> sorted;
+		synchronized (sim.latencies) {
+			sorted = new ArrayList<Long>(sim.latencies);
+		}
+		Collections.sort(sorted);
+		int lost = sim.lost();
+
+		System.setOut(console);
+		System.out.println("Peers: " + peers + ", churn: " + churned + (churned < churn ? " of " + churn + " (not enough messages)" : "") + ", membership converged: " + converged + " (" + joinMs + " ms)");
+		System.out.printf("Sent %d messages in %.2f s (%.0f msg/s, target %d), %d deliveries%n",
+				sim.sent.size(), sendSeconds, sim.sent.size() / sendSeconds, rate, sorted.size());
+		System.out.printf("Latency ms: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+				percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100));
+		System.out.println("Lost: " + lost + ", duplicates: " + sim.duplicates.get());
+		System.out.println("JVM threads: " + Thread.activeCount());
+		System.out.println(String.format("%-8s %6s %8s %8s %9s %9s", "peer", "port", "threads", "sockets", "outgoing", "received"));
+		// threads really alive, by name (see SocketInfo.threadName), so a thread that should have ended shows up
+		Map<String, Integer> threads = new HashMap<String, Integer>();
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			String name = t.getName();
+			if (t.isAlive() && name.startsWith("peer-") && name.contains("/")) {
+				threads.merge(name.substring(0, name.indexOf('/')), 1, Integer::sum);
+			}
+		}
+		for (SimPeer p : sim.alive()) {
+			int tasks = p.serverThread.getTaskCount();
+			int out = p.peer.getConnectionCount();
+			Integer live = threads.remove("peer-localhost:" + p.port);
+			System.out.println(String.format("%-8s %6d %8d %8d %9d %9d", p.name, p.port, (live == null) ? 0 : live, tasks + out, out, p.received.get()));
+		}
+		int left = 0;
+		for (int n : threads.values()) {
+			left += n;
+		}
+		System.out.println("Threads still alive of peers that left: " + left);
+		for (SimPeer p : sim.alive()) {
+			sim.stop(p);
+		}
+		System.exit(lost == 0 && sim.duplicates.get() == 0 ? 0 : 1);
+	}
+}
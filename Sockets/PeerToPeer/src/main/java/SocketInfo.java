@@ -27,4 +27,27 @@ public class SocketInfo {
 		return host;
 	}
 
+	// host:port, the same format peers use when they tell each other about peers
+	public String toString(){
+		return host + ":" + port;
+	}
+
+	// name for a thread of the peer at this address, so the threads of one peer can be found (see Simulation)
+	public String threadName(String what){
+		return "peer-" + this + "/" + what;
+	}
+
+	// two SocketInfos are the same peer if host and port match, needed so sets/maps of peers do not hold duplicates
+	public boolean equals(Object o){
+		if (!(o instanceof SocketInfo)){
+			return false;
+		}
+		SocketInfo other = (SocketInfo) o;
+		return port == other.port && host.equals(other.host);
+	}
+
+	public int hashCode(){
+		return 31 * host.hashCode() + port;
+	}
+
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 import org.json.*;
 
@@ -15,13 +16,12 @@ public class ClientThread extends Thread {
 	private BufferedReader bufferedReader;
 	
 	public ClientThread(Socket socket) throws IOException {
-		bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
 	}
 	public void run() {
 		while (true) {
 			try {
-			    JSONObject json = new JSONObject(bufferedReader.readLine());
-			    System.out.println("[" + json.getString("username")+"]: " + json.getString("message"));
+			    show(bufferedReader.readLine());
 			} catch (Exception e) {
 				interrupt();
 				break;
@@ -29,4 +29,12 @@ public class ClientThread extends Thread {
 		}
 	}
 
+	/**
+	 * Prints a message we got from a peer, also used by the SubscriptionReader
+	 */
+	public static void show(String line) {
+	    JSONObject json = new JSONObject(line);
+	    System.out.println("[" + json.getString("username")+"]: " + json.getString("message"));
+	}
+
 }
@@ -15,6 +15,7 @@ public class Peer {
 	private String username;
 	private BufferedReader bufferedReader;
 	private ServerThread serverThread;
+	public static final boolean USE_SELECTOR = Boolean.getBoolean("peer.selector");
 	
 	public Peer(BufferedReader bufReader, String username, ServerThread serverThread){
 		this.username = username;
@@ -43,16 +44,33 @@ public class Peer {
 	/**
 	 * User is asked to define who they want to subscribe/listen to
 	 * Per default we listen to no one
+	 * With -Dpeer.selector=true all peers are read by one SubscriptionReader thread instead of one ClientThread each
 	 *
 	 */
 	public void updateListenToPeers() throws Exception {
 		System.out.println("> Who do you want to listen to? Enter host:port");
 		String input = bufferedReader.readLine();
 		String[] setupValue = input.split(" ");
+		SubscriptionReader reader = null;
+		if (USE_SELECTOR) {
+			reader = new SubscriptionReader(new SubscriptionReader.Listener() {
+				public void onMessage(String line) {
+					try {
+						ClientThread.show(line);
+					} catch (Exception e) {
+						System.out.println("Could not read message: " + line);
+					}
+				}
+			});
+		}
 		for (int i = 0; i < setupValue.length; i++) {
 			String[] address = setupValue[i].split(":");
 			Socket socket = null;
 			try {
+				if (reader != null) {
+					reader.subscribe(address[0], Integer.valueOf(address[1]));
+					continue;
+				}
 				socket = new Socket(address[0], Integer.valueOf(address[1]));
 				new ClientThread(socket).start();
 			} catch (Exception c) {
@@ -65,6 +83,9 @@ public class Peer {
 				}
 			}
 		}
+		if (reader != null) {
+			reader.start();
+		}
 
 		askForInput();
 	}
@@ -1,50 +1,51 @@
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * SERVER
  * This is the ServerThread class that has a socket where we accept clients contacting us.
- * We save the clients ports connecting to the server into a List in this class. 
- * When we wand to send a message we send it to all the listening ports
+ * We save the clients connecting to the server into a Set in this class (one Subscriber each).
+ * When we wand to send a message we put it into the queue of every Subscriber, their own threads send it
  */
 
 public class ServerThread extends Thread{
 	private ServerSocket serverSocket;
-	private Set<Socket> listeningSockets = new HashSet<Socket>();
-	
+	private Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet(); // the accept thread adds while sendMessage loops over it
+
 	public ServerThread(String portNum) throws IOException {
 		serverSocket = new ServerSocket(Integer.valueOf(portNum));
 	}
-	
+
 	/**
-	 * Starting the thread, we are waiting for clients wanting to talk to us, then save the socket in a list
+	 * Starting the thread, we are waiting for clients wanting to talk to us, then save the subscriber in a list
 	 */
 	public void run() {
 		try {
 			while (true) {
 				Socket sock = serverSocket.accept();
-				listeningSockets.add(sock);
+				Subscriber s = new Subscriber(sock, this);
+				subscribers.add(s);
+				s.start();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
-	
+
+	// called by a Subscriber when its peer is gone
+	void remove(Subscriber s) {
+		subscribers.remove(s);
+	}
+
 	/**
-	 * Sending the message to the OutputStream for each socket that we saved
+	 * Putting the message into the queue of each subscriber that we saved, does not wait for the network
 	 */
 	void sendMessage(String message) {
-		try {
-			for (Socket s : listeningSockets) {
-				PrintWriter out = new PrintWriter(s.getOutputStream(), true);
-				out.println(message);
-		     }
-		} catch(Exception e) {
-			e.printStackTrace();
+		for (Subscriber s : subscribers) {
+			s.offer(message);
 		}
-	}	
+	}
 }
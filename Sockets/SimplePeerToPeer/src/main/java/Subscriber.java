@@ -0,0 +1,110 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One peer that listens to us. Every subscriber has its own queue and its own writer thread,
+ * so sending a message only means putting it into the queues and one slow or stuck peer cannot hold up everyone else.
+ *
+ * If the queue of a subscriber is full (the peer does not read fast enough) the policy decides what happens:
+ * - drop:       the oldest message in the queue is thrown away (default)
+ * - disconnect: the peer is disconnected, it can connect again
+ * - block:      we wait up to the block timeout for space and disconnect the peer if there still is none
+ *
+ * Can be set with the system properties peer.policy (drop|disconnect|block), peer.queue (default 1000)
+ * and peer.blockTimeout (ms, default 100).
+ */
+
+public class Subscriber extends Thread {
+	public static final String POLICY = System.getProperty("peer.policy", "drop");
+	public static final int QUEUE_SIZE = Integer.getInteger("peer.queue", 1000);
+	public static final long BLOCK_TIMEOUT = Long.getLong("peer.blockTimeout", 100); // ms
+
+	private Socket socket;
+	private Writer out;
+	private BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+	private ServerThread server; // so we can take ourself out of the list when the peer is gone
+	private volatile boolean closed = false;
+	private AtomicInteger dropped = new AtomicInteger();
+
+	public Subscriber(Socket socket, ServerThread server) throws IOException {
+		this.socket = socket;
+		this.server = server;
+		out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		setDaemon(true);
+	}
+
+	/**
+	 * Puts the message into the queue of this subscriber, never waits longer than the block timeout
+	 */
+	public void offer(String message) {
+		if (closed) {
+			return;
+		}
+		if (queue.offer(message)) {
+			return;
+		}
+		// queue is full, the peer is too slow
+		if (POLICY.equals("disconnect")) {
+			System.out.println("Subscriber " + socket.getRemoteSocketAddress() + " too slow, disconnecting");
+			close();
+		} else if (POLICY.equals("block")) {
+			try {
+				if (!queue.offer(message, BLOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					System.out.println("Subscriber " + socket.getRemoteSocketAddress() + " still too slow, disconnecting");
+					close();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			// drop oldest: make space and try again, if another thread was faster we just drop this one
+			queue.poll();
+			dropped.incrementAndGet();
+			queue.offer(message);
+		}
+	}
+
+	public int getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes everything in the queue to the peer, all messages that are waiting go out with one flush
+	 */
+	public void run() {
+		try {
+			while (!closed) {
+				String message = queue.take();
+				out.write(message);
+				out.write("\n");
+				while ((message = queue.poll()) != null) {
+					out.write(message);
+					out.write("\n");
+				}
+				out.flush();
+			}
+		} catch (Exception e) {
+			// peer is gone (or we closed it), no reason to keep it around
+		}
+		close();
+	}
+
+	public void close() {
+		closed = true;
+		server.remove(this);
+		interrupt();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+}
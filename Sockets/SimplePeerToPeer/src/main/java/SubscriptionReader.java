@@ -0,0 +1,105 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Client
+ * Instead of one ClientThread per peer we listen to, this one thread listens to all of them.
+ * All connections are registered with one Selector, which tells us which connections have something to read.
+ * We read whatever is there (maybe half a message, maybe several) and hand every complete line to the Listener.
+ * So no matter how many peers we listen to, it is always just this one thread.
+ */
+
+public class SubscriptionReader extends Thread {
+	private Selector selector;
+	private Listener listener;
+	private ByteBuffer buffer = ByteBuffer.allocate(8192); // shared, we only read one channel at a time
+
+	/**
+	 * Gets every message (one line without the newline) of every peer we listen to
+	 */
+	public interface Listener {
+		void onMessage(String line);
+	}
+
+	public SubscriptionReader(Listener listener) throws IOException {
+		this.listener = listener;
+		this.selector = Selector.open();
+		setDaemon(true);
+	}
+
+	/**
+	 * Connects to the peer and starts listening to it
+	 *
+	 * @throws IOException if we cannot connect
+	 */
+	public void subscribe(String host, int port) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.configureBlocking(false);
+		// the bytes of a message that did not end yet are kept with the channel
+		channel.register(selector, SelectionKey.OP_READ, new ByteArrayOutputStream());
+		selector.wakeup(); // in case we are already waiting in select, so the new channel is part of the next one
+	}
+
+	public int getSubscriptionCount() {
+		return selector.keys().size();
+	}
+
+	public void run() {
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isReadable()) {
+						read(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// reads what is there and hands out every complete line, the rest waits for the next read
+	private void read(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteArrayOutputStream partial = (ByteArrayOutputStream) key.attachment();
+		try {
+			buffer.clear();
+			int n = channel.read(buffer);
+			if (n == -1) {
+				// peer is gone
+				key.cancel();
+				channel.close();
+				return;
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				byte b = buffer.get();
+				if (b == '\n') {
+					String line = new String(partial.toByteArray(), StandardCharsets.UTF_8);
+					partial.reset();
+					listener.onMessage(line);
+				} else {
+					partial.write(b);
+				}
+			}
+		} catch (Exception e) {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException c) {
+				// already closed
+			}
+		}
+	}
+}